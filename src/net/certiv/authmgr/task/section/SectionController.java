@@ -10,6 +10,9 @@
  *******************************************************************************/
 package net.certiv.authmgr.task.section;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import net.certiv.authmgr.app.preferences.Prefs;
 import net.certiv.authmgr.app.preferences.PrefsKey;
 import net.certiv.authmgr.app.stages.StageEnum;
@@ -18,11 +21,18 @@ import net.certiv.authmgr.db.dao.model.Repository;
 import net.certiv.authmgr.scheduler.task.AbstractController;
 import net.certiv.authmgr.scheduler.task.AbstractTask;
 import net.certiv.authmgr.task.section.core.SectionTask;
+import net.certiv.authmgr.task.section.core.ThroughputTracker;
 
 public class SectionController extends AbstractController {
 
 	public static final String ID = "net.certiv.authmgr.task.section.SectionController";
 
+	/**
+	 * recent throughput of the section tasks, per corpus name, used to size each task run;
+	 * tasks of different corpora run concurrently, and so are measured apart
+	 */
+	private final Map<String, ThroughputTracker> throughputs = new HashMap<String, ThroughputTracker>();
+
 	public SectionController() {
 		super();
 		state = StageEnum.CLASSIFYLINES;
@@ -41,6 +51,15 @@ public class SectionController extends AbstractController {
 
 	@Override
 	public AbstractTask taskFactory(Repository rep, Corpus cor, int interval, int count) {
-		return new SectionTask(rep, cor, interval, count);
+		return new SectionTask(rep, cor, interval, count, getThroughput(cor));
+	}
+
+	private synchronized ThroughputTracker getThroughput(Corpus cor) {
+		ThroughputTracker throughput = throughputs.get(cor.getCorpusName());
+		if (throughput == null) {
+			throughput = new ThroughputTracker();
+			throughputs.put(cor.getCorpusName(), throughput);
+		}
+		return throughput;
 	}
 }
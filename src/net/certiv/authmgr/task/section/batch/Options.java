@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.batch;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the form <code>-name value</code>.
+ *
+ * @author Gbr
+ */
+public class Options {
+
+	private final Map<String, String> values = new HashMap<String, String>();
+
+	public Options(String[] args) {
+		for (int idx = 0; idx < args.length; idx++) {
+			if (args[idx].startsWith("-") && idx + 1 < args.length) {
+				values.put(args[idx].substring(1), args[++idx]);
+			}
+		}
+	}
+
+	public String get(String name, String def) {
+		String value = values.get(name);
+		return value != null ? value : def;
+	}
+
+	public int getInt(String name, int def) {
+		try {
+			return Integer.parseInt(get(name, String.valueOf(def)));
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public long getLong(String name, long def) {
+		try {
+			return Long.parseLong(get(name, String.valueOf(def)));
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.certiv.authmgr.db.dao.elems.DocPageList;
+import net.certiv.authmgr.task.section.core.ClassifySections;
+import net.certiv.authmgr.task.section.core.SectionSettings;
+import net.certiv.authmgr.task.section.core.classifier.BTreeWordsDataSource;
+import net.certiv.authmgr.task.section.core.classifier.BatchResult;
+import net.certiv.authmgr.task.section.core.classifier.PersistantWordsDataSource;
+import net.certiv.authmgr.task.section.model.ModelTrainer;
+
+/**
+ * Headless command line runner for batch training and classification, for scripted
+ * runs and for profiling outside of the workbench. Reports, on completion, the lines
+ * processed per second, the time of each stage, and the peak heap used.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * SectionCli train -dir &lt;dir&gt; -pattern &lt;prefix&gt; -stopwords &lt;file&gt; -model &lt;file&gt;
+ *                  [-backup &lt;file&gt;] [-store btree] [-threads &lt;n&gt;]
+ * SectionCli update -dir &lt;dir&gt; -pattern &lt;prefix&gt; -stopwords &lt;file&gt; -model &lt;file&gt;
+ * SectionCli classify -dir &lt;dir&gt; -stopwords &lt;file&gt; -model &lt;file&gt; [-window &lt;n&gt;]
+ *                  [-pattern &lt;prefix&gt;] [-out &lt;dir&gt;]
+ * </pre>
+ * 
+ * Training reads the files of the directory whose name starts with the pattern, and with
+ * <code>-store btree</code> trains a new {@link BTreeWordsDataSource} on disk; otherwise
+ * the heap model is trained on the given number of threads, by default the
+ * {@link SectionSettings#TRAIN_THREADS} setting. Either replaces the model only once
+ * complete, keeping any prior model as the backup, if given. A heap model named with an
+ * <code>.idx</code> suffix is saved in the indexed format, to be mapped. Updating
+ * teaches such files to an existing model through its training log.
+ * Classification reads the serialized {@link DocPageList} files (<code>.pages</code>) of
+ * the directory, writing the classified page lists to the output directory if given,
+ * and the training format files matching the pattern, if given, reporting the accuracy
+ * against their partition labels.
+ *
+ * @author Gbr
+ */
+public class SectionCli {
+
+	private final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+	private long lines;
+
+	public static void main(String[] args) {
+		if (args.length < 1) usage();
+		Options opts = new Options(Arrays.copyOfRange(args, 1, args.length));
+		SectionCli cli = new SectionCli();
+		long start = System.nanoTime();
+		try {
+			if (args[0].equals("train")) {
+				cli.train(opts);
+			} else if (args[0].equals("update")) {
+				cli.update(opts);
+			} else if (args[0].equals("classify")) {
+				cli.classify(opts);
+			} else {
+				usage();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.out.println(cli.report(System.nanoTime() - start));
+	}
+
+	private static void usage() {
+		System.err.println("Usage: SectionCli train -dir <dir> -pattern <prefix> -stopwords <file> -model <file>"
+				+ " [-backup <file>] [-store btree] [-threads <n>]");
+		System.err.println("       SectionCli update -dir <dir> -pattern <prefix> -stopwords <file> -model <file>");
+		System.err.println("       SectionCli classify -dir <dir> -stopwords <file> -model <file> [-window <n>]"
+				+ " [-pattern <prefix>] [-out <dir>]");
+		System.exit(2);
+	}
+
+	public void train(Options opts) throws Exception {
+		String dir = required(opts, "dir");
+		String pattern = required(opts, "pattern");
+		String model = required(opts, "model");
+
+		ModelTrainer trainer = new ModelTrainer(required(opts, "stopwords"));
+		File[] files = ModelTrainer.listTrainingFiles(new File(dir), pattern);
+		long start;
+		if ("btree".equals(opts.get("store", null))) {
+			// trained on disk into a new tree, replacing the model once complete
+			start = System.nanoTime();
+			trainer.trainTree(model, opts.get("backup", null), files);
+			start += trainer.getTeachNanos() + trainer.getUpdateNanos();
+		} else {
+			trainer.setThreads(opts.getInt("threads", SectionSettings.getTrainThreads()));
+			PersistantWordsDataSource pds = trainer.train(files);
+			start = System.nanoTime();
+			ModelTrainer.save(pds, model, opts.get("backup", null)).get();
+		}
+		stages.put("teach", trainer.getTeachNanos());
+		stages.put("probabilities", trainer.getUpdateNanos());
+		stages.put("save", System.nanoTime() - start);
+		lines += trainer.getLineCount();
+		System.out.println("Trained " + model + " from " + files.length + " files, " + trainer.getLineCount()
+				+ " lines");
+	}
+
+	public void update(Options opts) throws Exception {
+		String dir = required(opts, "dir");
+		String pattern = required(opts, "pattern");
+		String model = required(opts, "model");
+
+		ModelTrainer trainer = new ModelTrainer(required(opts, "stopwords"));
+		File[] files = ModelTrainer.listTrainingFiles(new File(dir), pattern);
+		trainer.update(model, files);
+		stages.put("teach", trainer.getTeachNanos());
+		stages.put("compact", trainer.getUpdateNanos());
+		lines += trainer.getLineCount();
+		System.out.println("Updated " + model + " from " + files.length + " files, " + trainer.getLineCount()
+				+ " lines");
+	}
+
+	public void classify(Options opts) throws Exception {
+		File dir = new File(required(opts, "dir"));
+		String out = opts.get("out", null);
+		final String pattern = opts.get("pattern", null);
+
+		long start = System.nanoTime();
+		ClassifySections cs = new ClassifySections(required(opts, "model"), required(opts, "stopwords"),
+				opts.getInt("window", SectionSettings.getWindow()));
+		stages.put("load", System.nanoTime() - start);
+
+		File[] pages = list(dir, new FileFilter() {
+
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(ShardCoordinator.INPUT_EXT);
+			}
+		});
+		Path outDir = out != null ? Files.createDirectories(new File(out).toPath()) : null;
+		for (File file : pages) {
+			classifyPages(cs, file, outDir);
+		}
+
+		if (pattern == null) return;
+		File[] texts = list(dir, new FileFilter() {
+
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().startsWith(pattern);
+			}
+		});
+		int correct = 0;
+		int total = 0;
+		for (File file : texts) {
+			start = System.nanoTime();
+			List<String> labels = new ArrayList<String>();
+			List<String> messages = new ArrayList<String>();
+			for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+				String[] training = line.split("\\s", 2);
+				if (training.length < 2) continue;
+				labels.add(training[0]);
+				messages.add(training[1]);
+			}
+			time("read", start);
+
+			start = System.nanoTime();
+			BatchResult result = cs.classifyMessages(messages);
+			time("classify", start);
+			for (int idx = 0; idx < result.size(); idx++) {
+				if (labels.get(idx).equals(result.getPartition(idx))) correct++;
+			}
+			total += result.size();
+			lines += result.size();
+		}
+		if (total > 0) {
+			System.out.println(String.format("Accuracy: %d/%d (%.2f%%)", correct, total, 100.0 * correct / total));
+		}
+	}
+
+	private void classifyPages(ClassifySections cs, File file, Path outDir) throws Exception {
+		long start = System.nanoTime();
+		DocPageList docPages;
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())));
+		try {
+			docPages = (DocPageList) in.readObject();
+		} finally {
+			in.close();
+		}
+		time("read", start);
+
+		start = System.nanoTime();
+		docPages = cs.classifyLines(docPages);
+		time("classify", start);
+		lines += ClassifySections.countLines(docPages);
+
+		if (outDir != null) {
+			start = System.nanoTime();
+			ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(outDir
+					.resolve(file.getName()))));
+			try {
+				oos.writeObject(docPages);
+			} finally {
+				oos.close();
+			}
+			time("write", start);
+		}
+	}
+
+	/**
+	 * Returns the lines per second over the given elapsed time, the time of each stage,
+	 * and the peak heap used.
+	 */
+	public String report(long elapsedNanos) {
+		StringBuilder sb = new StringBuilder();
+		double secs = Math.max(1, elapsedNanos) / 1e9;
+		sb.append(String.format("Lines: %d in %.2fs (%.1f lines/s)%n", lines, secs, lines / secs));
+		for (Map.Entry<String, Long> stage : stages.entrySet()) {
+			sb.append(String.format("  %-14s %10.1f ms%n", stage.getKey(), stage.getValue() / 1e6));
+		}
+		sb.append(String.format("Peak heap: %.1f MB", peakHeap() / (1024.0 * 1024.0)));
+		return sb.toString();
+	}
+
+	/* Sums the peak usage of the heap memory pools. */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private void time(String stage, long start) {
+		Long total = stages.get(stage);
+		stages.put(stage, (total != null ? total : 0) + System.nanoTime() - start);
+	}
+
+	private static File[] list(File dir, FileFilter filter) throws IOException {
+		File[] files = dir.listFiles(filter);
+		if (files == null) throw new IOException("Not a directory: " + dir);
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static String required(Options opts, String name) {
+		String value = opts.get(name, null);
+		if (value == null) throw new IllegalArgumentException("Missing -" + name);
+		return value;
+	}
+}
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.batch;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A unit of work of the shard queue: a named list of input files, claimed by a single
+ * worker at a time.
+ *
+ * @author Gbr
+ */
+public class Shard {
+
+	private final String name;
+	private final String worker;
+	private final List<String> inputs;
+
+	/** the claimed file of the shard; its modification time is the lease heartbeat */
+	final Path claimed;
+
+	Shard(String name, String worker, List<String> inputs, Path claimed) {
+		this.name = name;
+		this.worker = worker;
+		this.inputs = Collections.unmodifiableList(inputs);
+		this.claimed = claimed;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the id of the worker holding the shard.
+	 */
+	public String getWorker() {
+		return worker;
+	}
+
+	/**
+	 * Returns the paths of the input files of the shard.
+	 */
+	public List<String> getInputs() {
+		return inputs;
+	}
+
+	@Override
+	public String toString() {
+		return name + "@" + worker + "[" + inputs.size() + " inputs]";
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.batch;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.certiv.authmgr.app.util.Log;
+import net.certiv.authmgr.task.section.core.SectionSettings;
+
+/**
+ * Coordinates the sectioning of a set of documents across worker processes. The
+ * serialized {@link net.certiv.authmgr.db.dao.elems.DocPageList} files of an input
+ * directory are split into shards and queued on a {@link ShardQueue}; the coordinator
+ * then launches local {@link ShardWorker} processes and supervises the queue until it is
+ * drained, returning the shards of workers whose lease expires to the pending queue.
+ * <p>
+ * Workers on other machines take part by running {@link ShardWorker} against the same
+ * queue directory on a shared file system. All workers load the same model file.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * ShardCoordinator -queue &lt;dir&gt; -input &lt;dir&gt; -model &lt;file&gt; -stopwords &lt;file&gt;
+ *                  [-window &lt;n&gt;] [-shard &lt;docs&gt;] [-workers &lt;n&gt;] [-lease &lt;millis&gt;]
+ *                  [-expirations &lt;n&gt;] [-jvm &lt;options&gt;]
+ * </pre>
+ *
+ * @author Gbr
+ */
+public class ShardCoordinator {
+
+	public static final String INPUT_EXT = ".pages";
+	public static final int DEFAULT_SHARD_SIZE = 20;
+	public static final int DEFAULT_EXPIRATIONS = 3;
+
+	private final ShardQueue queue;
+	private final long lease;
+	private final int maxExpirations;
+	private final List<String> workerCommand;
+	private final Process[] workers;
+
+	/**
+	 * @param queue the queue to coordinate
+	 * @param lease the lease of a claimed shard, in milliseconds
+	 * @param maxExpirations the number of lease expirations after which a shard is failed
+	 * @param workerCommand the command line of a local worker, less its id
+	 * @param workerCount the number of local workers to keep running
+	 */
+	public ShardCoordinator(ShardQueue queue, long lease, int maxExpirations, List<String> workerCommand,
+			int workerCount) {
+		this.queue = queue;
+		this.lease = lease;
+		this.maxExpirations = maxExpirations;
+		this.workerCommand = workerCommand;
+		this.workers = new Process[Math.max(0, workerCount)];
+	}
+
+	public static void main(String[] args) {
+		Options opts = new Options(args);
+		String queueDir = opts.get("queue", null);
+		String inputDir = opts.get("input", null);
+		String model = opts.get("model", null);
+		String stopWords = opts.get("stopwords", null);
+		if (queueDir == null || inputDir == null || model == null || stopWords == null) {
+			System.err.println("Usage: ShardCoordinator -queue <dir> -input <dir> -model <file> -stopwords <file>"
+					+ " [-window <n>] [-shard <docs>] [-workers <n>] [-lease <millis>] [-expirations <n>]"
+					+ " [-jvm <options>]");
+			System.exit(2);
+		}
+		long lease = opts.getLong("lease", ShardWorker.DEFAULT_LEASE);
+		int workerCount = opts.getInt("workers", Runtime.getRuntime().availableProcessors());
+
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		String jvm = opts.get("jvm", "").trim();
+		if (jvm.length() > 0) cmd.addAll(Arrays.asList(jvm.split("\\s+")));
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(ShardWorker.class.getName());
+		cmd.addAll(Arrays.asList("-queue", queueDir, "-model", model, "-stopwords", stopWords, "-window",
+				String.valueOf(opts.getInt("window", SectionSettings.getWindow())), "-lease", String.valueOf(lease)));
+
+		try {
+			ShardQueue queue = new ShardQueue(new File(queueDir));
+			ShardCoordinator coordinator = new ShardCoordinator(queue, lease, opts.getInt("expirations",
+					DEFAULT_EXPIRATIONS), cmd, workerCount);
+			coordinator.split(new File(inputDir), opts.getInt("shard", DEFAULT_SHARD_SIZE));
+			coordinator.run();
+			System.exit(queue.count(ShardQueue.FAILED) == 0 ? 0 : 1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Splits the input files of the given directory into shards of the given size, in
+	 * file name order, queues them, and closes the queue.
+	 *
+	 * @return the number of shards queued
+	 */
+	public int split(File inputDir, int shardSize) throws IOException {
+		File[] files = inputDir.listFiles(new FileFilter() {
+
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(INPUT_EXT);
+			}
+		});
+		if (files == null) throw new IOException("Not a directory: " + inputDir);
+		Arrays.sort(files);
+
+		int size = Math.max(1, shardSize);
+		int shards = 0;
+		for (int idx = 0; idx < files.length; idx += size) {
+			List<String> inputs = new ArrayList<String>();
+			for (int jdx = idx; jdx < Math.min(files.length, idx + size); jdx++) {
+				inputs.add(files[jdx].getAbsolutePath());
+			}
+			queue.addShard(String.format("shard-%05d", ++shards), inputs);
+		}
+		queue.close();
+		Log.info(this, "Queued " + files.length + " documents in " + shards + " shards");
+		return shards;
+	}
+
+	/**
+	 * Supervises the queue until it is drained. Local workers that exit while shards are
+	 * still pending are restarted; expired leases are reclaimed every half lease.
+	 */
+	public void run() throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		try {
+			while (!queue.isDrained()) {
+				List<String> reclaimed = queue.reclaimExpired(lease, maxExpirations);
+				if (!reclaimed.isEmpty()) Log.warn(this, "Reclaimed expired shards " + reclaimed);
+				if (queue.count(ShardQueue.PENDING) > 0) startWorkers();
+				Log.info(this, queue.toString());
+				Thread.sleep(Math.max(100, lease / 2));
+			}
+			for (Process worker : workers) {
+				if (worker != null) worker.waitFor();
+			}
+		} finally {
+			for (Process worker : workers) {
+				if (worker != null && worker.isAlive()) worker.destroy();
+			}
+		}
+		Log.info(this, "Completed in " + (System.nanoTime() - start) / 1000000 + "ms: " + queue);
+	}
+
+	/* Starts a worker in each slot that has none running. */
+	private void startWorkers() throws IOException {
+		for (int idx = 0; idx < workers.length; idx++) {
+			if (workers[idx] != null && workers[idx].isAlive()) continue;
+			if (workers[idx] != null) {
+				Log.warn(this, "Worker " + (idx + 1) + " exited with " + workers[idx].exitValue() + "; restarting");
+			}
+			List<String> cmd = new ArrayList<String>(workerCommand);
+			cmd.add("-id");
+			cmd.add("local-" + (idx + 1) + "-" + System.currentTimeMillis());
+			workers[idx] = new ProcessBuilder(cmd).inheritIO().start();
+		}
+	}
+}
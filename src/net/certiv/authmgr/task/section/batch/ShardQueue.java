@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A work queue of shards held in a directory tree, shared by a coordinator and any number
+ * of worker processes on one or more machines:
+ * <UL>
+ * <LI><code>pending/</code> - shards awaiting a worker;</LI>
+ * <LI><code>claimed/</code> - shards held by a worker, named <code>&lt;shard&gt;@&lt;worker&gt;</code>;</LI>
+ * <LI><code>done/</code> - shards completed;</LI>
+ * <LI><code>failed/</code> - shards abandoned, each with a <code>.reason</code> file;</LI>
+ * <LI><code>output/</code> - the classified output files.</LI>
+ * </UL>
+ * Every transition is a single atomic rename, so exactly one worker wins a claim and a
+ * worker whose shard has been reassigned finds out on its next heartbeat or on completion.
+ * The tree must therefore reside on a single file system.
+ * <p>
+ * A claim is a lease, kept alive by the worker touching the modification time of its
+ * claimed file. The coordinator returns shards whose lease has expired to the pending
+ * queue. As worker and coordinator clocks are compared, the lease should comfortably
+ * exceed the clock skew between machines.
+ *
+ * @author Gbr
+ */
+public class ShardQueue {
+
+	public static final String PENDING = "pending";
+	public static final String CLAIMED = "claimed";
+	public static final String DONE = "done";
+	public static final String FAILED = "failed";
+	public static final String OUTPUT = "output";
+
+	private static final String SHARD_EXT = ".shard";
+	private static final String REASON_EXT = ".reason";
+	/** marker file: no further shards will be added */
+	private static final String CLOSED = "closed";
+	private static final char OWNER = '@';
+
+	private final Path root;
+	private final Path pending;
+	private final Path claimed;
+	private final Path done;
+	private final Path failed;
+	private final Path output;
+
+	/** leases expired per shard; kept by the coordinator's queue only */
+	private final Map<String, Integer> expirations = new HashMap<String, Integer>();
+
+	/**
+	 * Opens the queue rooted at the given directory, creating its directories as needed.
+	 */
+	public ShardQueue(File dir) throws IOException {
+		root = dir.toPath();
+		pending = Files.createDirectories(root.resolve(PENDING));
+		claimed = Files.createDirectories(root.resolve(CLAIMED));
+		done = Files.createDirectories(root.resolve(DONE));
+		failed = Files.createDirectories(root.resolve(FAILED));
+		output = Files.createDirectories(root.resolve(OUTPUT));
+	}
+
+	/**
+	 * Adds a shard. The shard file is written aside and renamed into the pending queue, so
+	 * it is never claimed partially written.
+	 *
+	 * @param name the shard name; unique within the queue
+	 * @param inputs the paths of the input files of the shard
+	 */
+	public void addShard(String name, List<String> inputs) throws IOException {
+		Path tmp = Files.createTempFile(root, name, ".tmp");
+		Files.write(tmp, inputs, StandardCharsets.UTF_8);
+		Files.move(tmp, pending.resolve(name + SHARD_EXT), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Marks the queue closed: no further shards will be added. Workers exit once a closed
+	 * queue is drained.
+	 */
+	public void close() throws IOException {
+		Path marker = root.resolve(CLOSED);
+		if (!Files.exists(marker)) Files.createFile(marker);
+	}
+
+	public boolean isClosed() {
+		return Files.exists(root.resolve(CLOSED));
+	}
+
+	/**
+	 * Returns whether no shards are pending or claimed.
+	 */
+	public boolean isDrained() throws IOException {
+		return count(PENDING) == 0 && count(CLAIMED) == 0;
+	}
+
+	/**
+	 * Claims the next pending shard for the given worker. The pending file is touched
+	 * before it is renamed, so that the lease starts with the claim: a file renamed with
+	 * the modification time it was queued with would appear already expired.
+	 *
+	 * @return the claimed shard, or null if none is pending
+	 */
+	public Shard claim(String worker) throws IOException {
+		for (Path file : list(pending)) {
+			String fileName = file.getFileName().toString();
+			Path target = claimed.resolve(fileName + OWNER + worker);
+			try {
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+				Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				continue; // claimed by another worker
+			} catch (FileAlreadyExistsException e) {
+				continue;
+			}
+			List<String> inputs = new ArrayList<String>();
+			try {
+				for (String line : Files.readAllLines(target, StandardCharsets.UTF_8)) {
+					if (line.trim().length() > 0) inputs.add(line.trim());
+				}
+			} catch (NoSuchFileException e) {
+				continue; // lease lost already
+			}
+			return new Shard(shardName(fileName), worker, inputs, target);
+		}
+		return null;
+	}
+
+	/**
+	 * Renews the lease of a claimed shard.
+	 *
+	 * @return false if the shard is no longer held by its worker
+	 */
+	public boolean heartbeat(Shard shard) throws IOException {
+		try {
+			Files.setLastModifiedTime(shard.claimed, FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Moves a claimed shard to the done queue.
+	 *
+	 * @return false if the shard is no longer held by its worker
+	 */
+	public boolean complete(Shard shard) throws IOException {
+		try {
+			Files.move(shard.claimed, done.resolve(shard.getName() + SHARD_EXT), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Moves a claimed shard to the failed queue, recording the reason.
+	 *
+	 * @return false if the shard is no longer held by its worker
+	 */
+	public boolean fail(Shard shard, String reason) throws IOException {
+		return fail(shard.claimed, shard.getName(), reason);
+	}
+
+	/**
+	 * Returns the claimed shards whose lease has expired to the pending queue. A shard
+	 * whose lease has expired the given number of times is failed instead, on the
+	 * presumption that it is what brings its workers down.
+	 *
+	 * @param leaseMillis the time since the last heartbeat after which a lease expires
+	 * @param maxExpirations the number of expirations after which a shard is failed
+	 * @return the names of the shards reclaimed or failed
+	 */
+	public List<String> reclaimExpired(long leaseMillis, int maxExpirations) throws IOException {
+		List<String> reclaimed = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		for (Path file : list(claimed)) {
+			long modified;
+			try {
+				modified = Files.getLastModifiedTime(file).toMillis();
+			} catch (NoSuchFileException e) {
+				continue; // completed meanwhile
+			}
+			if (now - modified < leaseMillis) continue;
+
+			String fileName = file.getFileName().toString();
+			String name = shardName(fileName);
+			Integer count = expirations.get(name);
+			count = count == null ? 1 : count + 1;
+			expirations.put(name, count);
+			if (count >= maxExpirations) {
+				if (fail(file, name, "Lease expired " + count + " times; last held by " + workerName(fileName))) {
+					reclaimed.add(name);
+				}
+				continue;
+			}
+			try {
+				Files.move(file, pending.resolve(name + SHARD_EXT), StandardCopyOption.ATOMIC_MOVE);
+				reclaimed.add(name);
+			} catch (NoSuchFileException e) {
+				// completed meanwhile
+			}
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Returns the number of shards in the given queue directory.
+	 */
+	public int count(String queue) throws IOException {
+		int count = 0;
+		for (Path file : list(root.resolve(queue))) {
+			if (!file.getFileName().toString().endsWith(REASON_EXT)) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the directory that classified output files are written to.
+	 */
+	public Path getOutputDir() {
+		return output;
+	}
+
+	public Path getRoot() {
+		return root;
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return "Shards[pending=" + count(PENDING) + ", claimed=" + count(CLAIMED) + ", done=" + count(DONE)
+					+ ", failed=" + count(FAILED) + "]";
+		} catch (IOException e) {
+			return "Shards[" + root + "]";
+		}
+	}
+
+	private boolean fail(Path file, String name, String reason) throws IOException {
+		try {
+			Files.move(file, failed.resolve(name + SHARD_EXT), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		Files.write(failed.resolve(name + REASON_EXT), reason.getBytes(StandardCharsets.UTF_8));
+		return true;
+	}
+
+	/* Lists the files of a queue directory in name order. */
+	private List<Path> list(Path dir) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	private static String shardName(String fileName) {
+		int owner = fileName.indexOf(OWNER);
+		if (owner >= 0) fileName = fileName.substring(0, owner);
+		return fileName.endsWith(SHARD_EXT) ? fileName.substring(0, fileName.length() - SHARD_EXT.length())
+				: fileName;
+	}
+
+	private static String workerName(String fileName) {
+		int owner = fileName.indexOf(OWNER);
+		return owner >= 0 ? fileName.substring(owner + 1) : "";
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.certiv.authmgr.app.util.Log;
+import net.certiv.authmgr.db.dao.elems.DocPageList;
+import net.certiv.authmgr.task.section.core.ClassifySections;
+import net.certiv.authmgr.task.section.core.SectionSettings;
+
+/**
+ * A headless sectioning worker. Claims shards from a {@link ShardQueue}, classifies the
+ * serialized {@link DocPageList} of each input file, and writes the classified page list,
+ * under the same file name, to the output directory of the queue. Runs until the queue
+ * is closed and drained.
+ * <p>
+ * An output file is written aside and renamed into place, so it is either complete or
+ * absent. Inputs whose output already exists are skipped, which lets a reassigned shard
+ * resume where its previous worker stopped.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * ShardWorker -queue &lt;dir&gt; -model &lt;file&gt; -stopwords &lt;file&gt; [-window &lt;n&gt;]
+ *             [-id &lt;worker&gt;] [-lease &lt;millis&gt;] [-poll &lt;millis&gt;]
+ * </pre>
+ *
+ * @author Gbr
+ */
+public class ShardWorker {
+
+	public static final long DEFAULT_LEASE = 60000;
+	public static final long DEFAULT_POLL = 2000;
+
+	private final ShardQueue queue;
+	private final ClassifySections cs;
+	private final String id;
+	private final long lease;
+	private final long poll;
+	private final ScheduledExecutorService heartbeat;
+
+	private int shards;
+	private int inputs;
+	private int skipped;
+	private long lines;
+
+	public ShardWorker(ShardQueue queue, ClassifySections cs, String id, long lease, long poll) {
+		this.queue = queue;
+		this.cs = cs;
+		this.id = id;
+		this.lease = lease;
+		this.poll = poll;
+		this.heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Shard heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static void main(String[] args) {
+		Options opts = new Options(args);
+		String queueDir = opts.get("queue", null);
+		String model = opts.get("model", null);
+		String stopWords = opts.get("stopwords", null);
+		if (queueDir == null || model == null || stopWords == null) {
+			System.err.println("Usage: ShardWorker -queue <dir> -model <file> -stopwords <file> [-window <n>]"
+					+ " [-id <worker>] [-lease <millis>] [-poll <millis>]");
+			System.exit(2);
+		}
+		try {
+			ShardQueue queue = new ShardQueue(new File(queueDir));
+			ClassifySections cs = new ClassifySections(model, stopWords, opts.getInt("window", SectionSettings.getWindow()));
+			ShardWorker worker = new ShardWorker(queue, cs, opts.get("id", defaultId()).replace('@', '-'), opts.getLong("lease",
+					DEFAULT_LEASE), opts.getLong("poll", DEFAULT_POLL));
+			worker.run();
+			System.exit(0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Processes shards until the queue is closed and drained.
+	 */
+	public void run() throws IOException, InterruptedException {
+		Log.info(this, "Worker " + id + " starting on " + queue.getRoot());
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				Shard shard = queue.claim(id);
+				if (shard != null) {
+					process(shard);
+				} else if (queue.isClosed() && queue.isDrained()) {
+					break;
+				} else {
+					Thread.sleep(poll);
+				}
+			}
+		} finally {
+			heartbeat.shutdownNow();
+		}
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		Log.info(this, "Worker " + id + " finished: " + shards + " shards, " + inputs + " inputs (" + skipped
+				+ " skipped), " + lines + " lines, " + (lines * 1000 / millis) + " lines/s");
+	}
+
+	private void process(final Shard shard) throws IOException {
+		final AtomicBoolean lost = new AtomicBoolean();
+		long period = Math.max(1, lease / 3);
+		ScheduledFuture<?> beat = heartbeat.scheduleAtFixedRate(new Runnable() {
+
+			public void run() {
+				try {
+					if (!queue.heartbeat(shard)) lost.set(true);
+				} catch (IOException e) {
+					Log.warn(ShardWorker.this, "Heartbeat failed for " + shard + ": " + e.getMessage());
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		try {
+			for (String input : shard.getInputs()) {
+				if (lost.get()) {
+					Log.warn(this, "Lost lease on " + shard + "; abandoning");
+					return;
+				}
+				try {
+					classify(Paths.get(input));
+				} catch (Exception e) {
+					Log.error(this, "Failed " + input + " of " + shard, e);
+					queue.fail(shard, input + ": " + e);
+					return;
+				}
+			}
+		} finally {
+			beat.cancel(false);
+		}
+		if (queue.complete(shard)) {
+			shards++;
+		} else {
+			Log.warn(this, "Lost lease on " + shard + " before completion");
+		}
+	}
+
+	private void classify(Path input) throws IOException, ClassNotFoundException {
+		Path target = queue.getOutputDir().resolve(input.getFileName());
+		if (Files.exists(target)) {
+			skipped++;
+			return;
+		}
+
+		DocPageList pages;
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(input)))) {
+			pages = (DocPageList) in.readObject();
+		}
+		pages = cs.classifyLines(pages);
+
+		Path tmp = Files.createTempFile(queue.getOutputDir(), input.getFileName().toString(), ".tmp");
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeObject(pages);
+		}
+		Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		inputs++;
+		lines += ClassifySections.countLines(pages);
+	}
+
+	/* host and process id, the queue reserving '@' */
+	private static String defaultId() {
+		return ManagementFactory.getRuntimeMXBean().getName().replace('@', '-');
+	}
+}
@@ -11,6 +11,11 @@
 package net.certiv.authmgr.task.section.core;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Pattern;
 
 import net.certiv.authmgr.app.preferences.Prefs;
@@ -20,9 +25,11 @@ import net.certiv.authmgr.app.util.Util;
 import net.certiv.authmgr.db.dao.elems.DocLine;
 import net.certiv.authmgr.db.dao.elems.DocPage;
 import net.certiv.authmgr.db.dao.elems.DocPageList;
+import net.certiv.authmgr.task.section.core.classifier.BatchResult;
 import net.certiv.authmgr.task.section.core.classifier.BayesPartitionClassifier;
 import net.certiv.authmgr.task.section.core.classifier.CombinedTokenFilter;
-import net.certiv.authmgr.task.section.core.classifier.PersistantWordsDataSource;
+import net.certiv.authmgr.task.section.core.classifier.ModelHandle;
+import net.certiv.authmgr.task.section.core.classifier.ModelRegistry;
 import net.sf.classifier4J.bayesian.WordsDataSourceException;
 
 /**
@@ -38,6 +45,8 @@ public class ClassifySections {
 	private SectionTask task;
 	private String currentBCModel;
 	private int windowSize;
+	private boolean parallel = SectionSettings.isPageParallel();
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
 
 	// compiled regex's
 	private static final Pattern outline = Pattern
@@ -87,24 +96,37 @@ public class ClassifySections {
 	 * @throws IOException
 	 */
 	public ClassifySections(SectionTask task, String modelName) {
+		this(task, modelName != null && modelName.length() > 0 ? modelName : Prefs.getString(PrefsKey.CUR_CLASSIFY),
+				Prefs.getString(PrefsKey.STOP_WORDS_LIST), Prefs.getInt(PrefsKey.TRAINING_WINDOW));
+	}
+
+	/**
+	 * Initializes the Bayesian classifier outside of the workbench, without a task to
+	 * report to or the preferences to configure from.
+	 * 
+	 * @param modelName The name of the classification model to use.
+	 * @param stopWords The name of the stop words list.
+	 * @param windowSize The number of neighboring lines, each side, in the sliding window.
+	 */
+	public ClassifySections(String modelName, String stopWords, int windowSize) {
+		this(null, modelName, stopWords, windowSize);
+	}
+
+	private ClassifySections(SectionTask task, String modelName, String sw, int windowSize) {
 		this.task = task;
-		currentBCModel = Prefs.getString(PrefsKey.CUR_CLASSIFY);
-		windowSize = Prefs.getInt(PrefsKey.TRAINING_WINDOW);
-		String sw = Prefs.getString(PrefsKey.STOP_WORDS_LIST);
+		this.currentBCModel = modelName;
+		this.windowSize = windowSize;
 
-		PersistantWordsDataSource pds;
-		if (modelName != null && modelName.length() > 0) {
-			pds = new PersistantWordsDataSource(modelName);
-		} else {
-			pds = new PersistantWordsDataSource(currentBCModel);
-		}
+		// models are loaded once per process, shared read-only, and swapped in place
+		// whenever the model file is retrained
+		ModelHandle model = ModelRegistry.getDefault().watch(currentBCModel);
 		CombinedTokenFilter tok = null;
 		try {
-			tok = new CombinedTokenFilter(sw);
+			tok = ModelRegistry.getDefault().getTokenFilter(sw);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		classifier = new BayesPartitionClassifier(pds, tok);
+		classifier = new BayesPartitionClassifier(model, tok);
 	}
 
 	/**
@@ -116,96 +138,313 @@ public class ClassifySections {
 	 * <LI>Perform the classification operation for each line and store the best match
 	 * category index back to the DocLine objects within the DocPages structure.</LI>
 	 * </UL>
+	 * In parallel mode, both stages are run page by page across the fork/join pool.
 	 * 
 	 * @param docStructure
 	 * @return
+	 * @throws IllegalStateException if the model cannot be read; no page is then left
+	 *             with sections it was not classified to
 	 */
 	public DocPageList classifyLines(DocPageList docStructure) {
+		if (parallel) {
+			return classifyLinesParallel(docStructure);
+		}
+
 		// first, annotate the individual lines
-		task.announceStatusUpdate("Working...");
+		status("Working...");
 		int sizePages = docStructure.size();
 		for (int i = 0; i < sizePages; i++) {
 			DocPage dp = (DocPage) docStructure.get(i);
-			int sizeLines = dp.size(DocPage.RANK_ORDER);
-			for (int j = 0; j < sizeLines; j++) {
-				StringBuffer ls = generateLineStructure(dp, j);
-				if (i == 0 && j == 0) {
-					ls.insert(0, "begin## ");
-				} else if (i == (sizePages - 1) && j == (sizeLines - 1)) {
-					ls.append("end## ");
-				}
-				String s = ls.toString();
-				dp.getDocLine(j, DocPage.RANK_ORDER).lineStructure = s;
-				Thread.yield();
-			}
+			annotatePage(dp, i == 0, i == sizePages - 1);
 		}
 
 		// second, classify the current line within a sliding window
-		int negwindow = -windowSize;
-		int poswindow = windowSize + 1;
 		int count = 0;
-
-		task.announceStatusUpdate("Working [page=" + "0/" + sizePages + ", line=" + count + "]");
+		status("Working [page=" + "0/" + sizePages + ", line=" + count + "]");
 		for (int i = 0; i < sizePages; i++) {
 			long start = System.currentTimeMillis();
-			task.announceStatusUpdate("Working [page=" + (i + 1) + "/" + sizePages + ", line=" + count + "]");
+			status("Working [page=" + (i + 1) + "/" + sizePages + ", line=" + count + "]");
 			DocPage dp = docStructure.getDocPageAtIdx(i);
-			int sizeLines = dp.size(DocPage.RANK_ORDER);
-			for (int j = 0; j < sizeLines; j++) {
-				int negSlide = ((j + negwindow) > 0) ? negwindow : -j;
-				int posSlide = ((j + poswindow) < dp.size(DocPage.RANK_ORDER)) ? poswindow : sizeLines - j;
-
-				// walk through the sliding window and accumulate structure
-				// elements
-				StringBuffer sb = new StringBuffer();
-				for (int k = j + negSlide; k < j + posSlide; k++) {
-					DocLine dl = dp.getDocLine(k, DocPage.RANK_ORDER);
-					String offstr = String.valueOf(k - j);
-					String lineStruc = new String(dl.lineStructure);
-					// make line structure element relative to this line
-					String q = lineStruc.replaceAll("##", offstr);
-					sb.append(q);
-				}
-				// classify each line
-				DocLine dl = dp.getDocLine(j, DocPage.RANK_ORDER);
-				String ls2 = sb.toString();
-				dl.lineStructure2 = ls2;
-				dl.lineSection = classifyLine(dl.lineContent, dl.lineStructure2);
-				count++;
-				if (count % 10 == 0) {
-					task.announceStatusUpdate("Working [page=" + (i + 1) + "/" + sizePages + ", line=" + count + "]");
-				}
-				Thread.yield();
-			}
+			count += classifyPage(dp);
+			status("Working [page=" + (i + 1) + "/" + sizePages + ", line=" + count + "]");
 			long stop = System.currentTimeMillis();
-			task.announceStatusUpdate("Page classification time: " + (stop - start) + "ms");
+			status("Page classification time: " + (stop - start) + "ms");
 		}
 		return docStructure; // return - not needed?
 	}
 
 	/**
-	 * Perform the actual line classification operation. Submit the line for
-	 * classification and return the current category index of the best/maximum
-	 * classification match.
+	 * Opens a single-pass stream over a document whose pages will be offered one at a
+	 * time. Lines are handed to the listener as soon as their page is classified, and at
+	 * most one page is held by the stream.
+	 * 
+	 * @param listener receives the classified lines and pages
+	 * @return the stream to offer the pages of the document to
+	 */
+	public SectionStream openStream(ISectionListener listener) {
+		return new SectionStream(this, listener);
+	}
+
+	/**
+	 * Classifies the pages of a document, as provided by the given iterator, in a single
+	 * pass. Pages are drawn from the iterator only as earlier pages are handed off.
 	 * 
-	 * @param elementSet The combined line content and fully quaified line structure
-	 *            specification.
-	 * @return Index of the category match.
+	 * @param pages the pages of the document, in order
+	 * @param listener receives the classified lines and pages
+	 */
+	public void classifyLines(Iterator<DocPage> pages, ISectionListener listener) {
+		status("Working...");
+		SectionStream stream = openStream(listener);
+		while (pages.hasNext()) {
+			stream.offer(pages.next());
+		}
+		stream.close();
+	}
+
+	/*
+	 * Both stages depend only on lines of the same page: the sliding window is clamped to
+	 * the page, and the begin/end markers depend only on the page position. Each page is
+	 * therefore annotated and classified as an independent task. Progress is reported in
+	 * page order as each run of completed pages becomes contiguous.
 	 */
-	private int classifyLine(String content, String structure) {
-		// construct the final classifier ready message
-		String elements = Util.tokenFilterAll(new String(content)) + " " + structure;
-		// Log.debug(this, "Classifying: " + elements);
+	private DocPageList classifyLinesParallel(final DocPageList docStructure) {
+		status("Working...");
+		int sizePages = docStructure.size();
+		status("Working [page=" + "0/" + sizePages + ", line=0]");
+		pool.invoke(new PagesTask(docStructure, new PageProgress(sizePages), 0, sizePages));
+		return docStructure;
+	}
+
+	private class PagesTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final DocPageList docStructure;
+		private final PageProgress progress;
+		private final int lo;
+		private final int hi;
+
+		PagesTask(DocPageList docStructure, PageProgress progress, int lo, int hi) {
+			this.docStructure = docStructure;
+			this.progress = progress;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new PagesTask(docStructure, progress, lo, mid), new PagesTask(docStructure, progress,
+						mid, hi));
+				return;
+			}
+			long start = System.currentTimeMillis();
+			DocPage dp = docStructure.getDocPageAtIdx(lo);
+			annotatePage(dp, lo == 0, lo == progress.size - 1);
+			int lines = classifyPage(dp);
+			progress.completed(lo, lines, System.currentTimeMillis() - start);
+		}
+	}
+
+	/* Reports page completions in page order. */
+	private class PageProgress {
+
+		final int size;
+		private final boolean[] done;
+		private final int[] lines;
+		private final long[] times;
+		private int next;
+		private int count;
+
+		PageProgress(int size) {
+			this.size = size;
+			this.done = new boolean[size];
+			this.lines = new int[size];
+			this.times = new long[size];
+		}
+
+		synchronized void completed(int page, int pageLines, long time) {
+			done[page] = true;
+			lines[page] = pageLines;
+			times[page] = time;
+			while (next < size && done[next]) {
+				count += lines[next];
+				status("Working [page=" + (next + 1) + "/" + size + ", line=" + count + "]");
+				status("Page classification time: " + times[next] + "ms");
+				next++;
+			}
+		}
+	}
 
-		int result = 0;
+	/**
+	 * Annotates each line of the page with its generic line structure specification. The
+	 * first line of the document is marked as its beginning and the last as its end.
+	 * 
+	 * @param dp the page to annotate
+	 * @param firstPage whether this is the first page of the document
+	 * @param lastPage whether this is the last page of the document
+	 */
+	void annotatePage(DocPage dp, boolean firstPage, boolean lastPage) {
+		int sizeLines = dp.size(DocPage.RANK_ORDER);
+		for (int j = 0; j < sizeLines; j++) {
+			StringBuffer ls = generateLineStructure(dp, j);
+			if (firstPage && j == 0) {
+				ls.insert(0, "begin## ");
+			} else if (lastPage && j == (sizeLines - 1)) {
+				ls.append("end## ");
+			}
+			String s = ls.toString();
+			dp.getDocLine(j, DocPage.RANK_ORDER).lineStructure = s;
+		}
+	}
+
+	/**
+	 * Classifies each line of an annotated page within a sliding window of the line
+	 * structures of its neighbors on the page.
+	 * 
+	 * @param dp the page to classify
+	 * @return the number of lines classified
+	 * @throws IllegalStateException if the model cannot be read
+	 */
+	int classifyPage(DocPage dp) {
+		int sizeLines = dp.size(DocPage.RANK_ORDER);
+		String[] structures = new String[sizeLines];
+		for (int j = 0; j < sizeLines; j++) {
+			structures[j] = dp.getDocLine(j, DocPage.RANK_ORDER).lineStructure;
+		}
+		List<String> elements = new ArrayList<String>(sizeLines);
+		for (int j = 0; j < sizeLines; j++) {
+			// construct the final classifier ready message for each line
+			DocLine dl = dp.getDocLine(j, DocPage.RANK_ORDER);
+			dl.lineStructure2 = windowStructure(structures, j);
+			elements.add(Util.tokenFilterAll(new String(dl.lineContent)) + " " + dl.lineStructure2);
+		}
+
+		// classify the lines of the page as a single batch
+		int[] sections = classifyBatch(elements);
+		for (int j = 0; j < sizeLines; j++) {
+			dp.getDocLine(j, DocPage.RANK_ORDER).lineSection = sections[j];
+		}
+		return sizeLines;
+	}
+
+	/**
+	 * Classifies the lines of a page given as text: the content and the generic line
+	 * structure specification of each line, as produced by the annotation stage. The
+	 * structures are combined within the sliding window exactly as for a {@link DocPage}.
+	 * 
+	 * @param contents the content of each line of the page
+	 * @param structures the line structure specification of each line of the page
+	 * @return the best matching section, and its margin, of each line
+	 * @throws WordsDataSourceException if the model cannot be read
+	 */
+	public BatchResult classifyPage(List<String> contents, List<String> structures) throws WordsDataSourceException {
+		String[] lineStructures = structures.toArray(new String[structures.size()]);
+		List<String> elements = new ArrayList<String>(contents.size());
+		for (int j = 0; j < contents.size(); j++) {
+			elements.add(Util.tokenFilterAll(contents.get(j)) + " " + windowStructure(lineStructures, j));
+		}
+		return classifyMessages(elements);
+	}
+
+	/**
+	 * Classifies classifier ready messages, each the filtered content and the windowed
+	 * line structure of a line, as a single batch.
+	 * 
+	 * @return the best matching section, and its margin, of each message
+	 * @throws WordsDataSourceException if the model cannot be read
+	 */
+	public BatchResult classifyMessages(List<String> messages) throws WordsDataSourceException {
+		return classifier.classifyBatch(categoryFixed, messages, pool);
+	}
+
+	/*
+	 * Walks the sliding window about the given line and accumulates the structure
+	 * elements of its neighbors, each made relative to the line.
+	 */
+	private String windowStructure(String[] structures, int j) {
+		int negwindow = -windowSize;
+		int poswindow = windowSize + 1;
+		int sizeLines = structures.length;
+		int negSlide = ((j + negwindow) > 0) ? negwindow : -j;
+		int posSlide = ((j + poswindow) < sizeLines) ? poswindow : sizeLines - j;
+
+		StringBuffer sb = new StringBuffer();
+		for (int k = j + negSlide; k < j + posSlide; k++) {
+			String offstr = String.valueOf(k - j);
+			// make line structure element relative to this line
+			sb.append(structures[k].replaceAll("##", offstr));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the number of lines in the given document structure.
+	 */
+	public static int countLines(DocPageList docStructure) {
+		int count = 0;
+		for (int i = 0; i < docStructure.size(); i++) {
+			count += docStructure.getDocPageAtIdx(i).size(DocPage.RANK_ORDER);
+		}
+		return count;
+	}
+
+	/* Reports status through the owning task, if any. */
+	void status(String msg) {
+		if (task != null) task.announceStatusUpdate(msg);
+	}
+
+	/**
+	 * Enables or disables page-parallel classification.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Sets the fork/join pool used for page-parallel and batch classification.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Perform the actual line classification operation. Submit the lines for
+	 * classification as a single batch and return, for each, the current category index
+	 * of the best/maximum classification match.
+	 * 
+	 * @param elements The combined line content and fully quaified line structure
+	 *            specification of each line.
+	 * @return Index of the category match for each line; a line that no partition scored
+	 *         is given the index of no match, as by the line at a time classification.
+	 * @throws IllegalStateException if the model cannot be read
+	 */
+	private int[] classifyBatch(List<String> elements) {
+		BatchResult batch;
 		try {
-			String section = classifier.classify(categoryFixed, elements);
-			if (debug) Log.debug(this, "Classified: " + section + " >>> " + elements);
-			result = DocLine.getSectionIndex(section);
+			batch = classifier.classifyBatch(categoryFixed, elements, pool);
 		} catch (WordsDataSourceException e) {
-			e.printStackTrace();
-		}
-		return result;
+			Log.error(this, "Failed to classify page of " + elements.size() + " lines", e);
+			throw new IllegalStateException("Failed to classify page", e);
+		}
+		String[] partitions = batch.getPartitions();
+		int[] sectionIdx = new int[partitions.length];
+		for (int p = 0; p < partitions.length; p++) {
+			sectionIdx[p] = DocLine.getSectionIndex(partitions[p]);
+		}
+		int unclassified = DocLine.getSectionIndex(null);
+		int[] best = batch.getPartitionIndices();
+		int[] results = new int[elements.size()];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = best[i] < 0 ? unclassified : sectionIdx[best[i]];
+			if (debug) Log.debug(this, "Classified: " + batch.getPartition(i) + " >>> " + elements.get(i));
+		}
+		return results;
 	}
 
 	/**
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core;
+
+import net.certiv.authmgr.db.dao.elems.DocLine;
+import net.certiv.authmgr.db.dao.elems.DocPage;
+
+/**
+ * Receives the lines of a document as they are classified by a {@link SectionStream}.
+ * Callbacks are made on the thread feeding the stream, in document order; the stream
+ * does not accept its next page until the callbacks for the completed page return.
+ *
+ * @author Gbr
+ */
+public interface ISectionListener {
+
+	/**
+	 * Called for each line once its section has been classified.
+	 *
+	 * @param page the zero-based index of the page within the document
+	 * @param line the rank order index of the line within the page
+	 * @param docLine the classified line
+	 */
+	public void lineClassified(int page, int line, DocLine docLine);
+
+	/**
+	 * Called once every line of a page has been classified. The stream holds no further
+	 * reference to the page.
+	 *
+	 * @param page the zero-based index of the page within the document
+	 * @param docPage the classified page
+	 */
+	public void pageClassified(int page, DocPage docPage);
+}
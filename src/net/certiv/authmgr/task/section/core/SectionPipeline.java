@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.certiv.authmgr.app.util.Log;
+import net.certiv.authmgr.db.dao.elems.DocPageList;
+import net.certiv.authmgr.db.dao.model.DocStage;
+import net.certiv.authmgr.db.dao.model.Document;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * Runs the documents of a section task through a three stage pipeline:
+ * <UL>
+ * <LI>fetch: load the previous stage of the document;</LI>
+ * <LI>classify: section the lines of the document;</LI>
+ * <LI>store: attach the classified stage and save the document.</LI>
+ * </UL>
+ * Stages are connected by bounded queues, so a stage that falls behind holds back the
+ * stages ahead of it. Each stage runs on its own threads, sized independently. Per stage
+ * busy, idle and blocked times are collected to guide that sizing. Fetches and stores go
+ * through the task's session, one at a time, as the session is not thread-safe.
+ *
+ * @author Gbr
+ */
+public class SectionPipeline {
+
+	/** end of stream marker passed down the pipeline */
+	private static final Work DONE = new Work(null);
+
+	private final SectionTask task;
+	private final ClassifySections cs;
+	private final int queueSize;
+
+	private final Stage fetch;
+	private final Stage classify;
+	private final Stage store;
+
+	/** source documents, drawn by the fetch stage while the budget allows */
+	private Iterator<Document> source;
+	private WorkBudget budget;
+
+	/** the first failure; once set, remaining documents are drained unprocessed */
+	private volatile Throwable failure;
+
+	/**
+	 * Creates a pipeline sized by the {@link SectionSettings}.
+	 */
+	public SectionPipeline(SectionTask task, ClassifySections cs) {
+		this(task, cs, SectionSettings.getInt(SectionSettings.FETCH_THREADS, 1), SectionSettings.getInt(
+				SectionSettings.CLASSIFY_THREADS, Runtime.getRuntime().availableProcessors()), SectionSettings
+				.getInt(SectionSettings.STORE_THREADS, 1), SectionSettings.getInt(SectionSettings.QUEUE_SIZE, 4));
+	}
+
+	public SectionPipeline(SectionTask task, ClassifySections cs, int fetchThreads, int classifyThreads,
+			int storeThreads, int queueSize) {
+		this.task = task;
+		this.cs = cs;
+		this.queueSize = Math.max(1, queueSize);
+
+		fetch = new Stage("fetch", fetchThreads) {
+
+			@Override
+			Work process(Work work) {
+				work.prevStage = SectionPipeline.this.task.fetchDocument(work.doc);
+				return work;
+			}
+		};
+		classify = new Stage("classify", classifyThreads) {
+
+			@Override
+			Work process(Work work) {
+				work.pages = SectionPipeline.this.cs.classifyLines((DocPageList) work.prevStage.getPages());
+				work.lines = ClassifySections.countLines(work.pages);
+				budget.charge(work.lines);
+				SectionPipeline.this.task.announceStatusUpdate("Classified " + work.doc.getRepPathPart()
+						+ work.doc.getRepDocName());
+				return work;
+			}
+		};
+		store = new Stage("store", storeThreads) {
+
+			@Override
+			Work process(Work work) throws InvocationTargetException {
+				SectionPipeline.this.task.storeDocument(work.doc, work.prevStage, work.pages);
+				work.prevStage = null;
+				work.pages = null;
+				return work;
+			}
+		};
+	}
+
+	/**
+	 * Runs documents through the pipeline for as long as the budget allows. Returns once
+	 * every document taken has completed or been abandoned after a failure, and the
+	 * threads of every stage have ended.
+	 *
+	 * @param docs the documents to section
+	 * @param budget the documents and lines the run may take; charged with the lines of
+	 *            each document as it is classified
+	 * @param monitor progress monitor, advanced in lines from the calling thread as
+	 *            documents complete
+	 * @throws InvocationTargetException on the first document that fails
+	 */
+	public void run(Iterator<Document> docs, WorkBudget budget, IProgressMonitor monitor)
+			throws InvocationTargetException, InterruptedException {
+		this.source = docs;
+		this.budget = budget;
+
+		BlockingQueue<Work> fetched = new ArrayBlockingQueue<Work>(queueSize);
+		BlockingQueue<Work> classified = new ArrayBlockingQueue<Work>(queueSize);
+		BlockingQueue<Work> completed = new LinkedBlockingQueue<Work>();
+
+		fetch.start(null, fetched);
+		classify.start(fetched, classified);
+		store.start(classified, completed);
+
+		try {
+			for (Work work = completed.take(); work != DONE; work = completed.take()) {
+				monitor.worked(work.lines);
+			}
+		} catch (InterruptedException e) {
+			fetch.interrupt();
+			classify.interrupt();
+			store.interrupt();
+			throw e;
+		} finally {
+			fetch.join();
+			classify.join();
+			store.join();
+		}
+
+		if (failure instanceof InvocationTargetException) {
+			throw (InvocationTargetException) failure;
+		} else if (failure != null) {
+			throw new InvocationTargetException(failure, "Failed to section");
+		}
+	}
+
+	/**
+	 * Returns a summary of the work done by each stage, and the time its threads spent
+	 * busy, idle waiting for input, and blocked on a full output queue.
+	 */
+	public String report() {
+		return "Pipeline " + fetch + "; " + classify + "; " + store;
+	}
+
+	/* Records the first failure of the run. */
+	private synchronized void fail(Throwable e) {
+		if (failure == null) failure = e;
+	}
+
+	/*
+	 * Draws the next source document while the budget allows and no document has failed.
+	 * The budget is checked first, so that no document is drawn past it.
+	 */
+	private synchronized Work next() {
+		if (failure != null || !budget.take()) return DONE;
+		if (!source.hasNext()) {
+			budget.release();
+			return DONE;
+		}
+		return new Work(source.next());
+	}
+
+	private static class Work {
+
+		final Document doc;
+		DocStage prevStage;
+		DocPageList pages;
+		int lines;
+
+		Work(Document doc) {
+			this.doc = doc;
+		}
+	}
+
+	/*
+	 * A pipeline stage. Each thread takes work from the input queue, or from the source
+	 * for the first stage, and puts the result on the output queue. The end marker is
+	 * passed on by the last of the stage's threads to finish, however the thread ends, so
+	 * that the stages after it, and the consumer, are never left waiting.
+	 */
+	private abstract class Stage {
+
+		final String name;
+		final int threads;
+		final AtomicInteger alive = new AtomicInteger();
+		final AtomicLong items = new AtomicLong();
+		final AtomicLong busyNanos = new AtomicLong();
+		final AtomicLong blockedNanos = new AtomicLong();
+		final AtomicLong idleNanos = new AtomicLong();
+		final List<Thread> workers = new ArrayList<Thread>();
+
+		Stage(String name, int threads) {
+			this.name = name;
+			this.threads = Math.max(1, threads);
+		}
+
+		abstract Work process(Work work) throws Exception;
+
+		void start(final BlockingQueue<Work> in, final BlockingQueue<Work> out) {
+			alive.set(threads);
+			for (int idx = 0; idx < threads; idx++) {
+				Thread t = new Thread(new Runnable() {
+
+					public void run() {
+						boolean interrupted = false;
+						try {
+							work(in, out);
+						} catch (InterruptedException e) {
+							interrupted = true;
+							fail(e);
+						} catch (RuntimeException e) {
+							fail(e);
+							throw e;
+						} finally {
+							if (in != null) pass(in); // release sibling threads
+							if (alive.decrementAndGet() == 0) pass(out);
+							if (interrupted) Thread.currentThread().interrupt();
+						}
+					}
+				}, "Section " + name + " " + (idx + 1));
+				t.setDaemon(true);
+				workers.add(t);
+				t.start();
+			}
+		}
+
+		void interrupt() {
+			for (Thread t : workers) {
+				t.interrupt();
+			}
+		}
+
+		/*
+		 * Waits for the threads of the stage to end. A thread interrupted mid store may
+		 * still be using the session, so the wait is not cut short by an interrupt; the
+		 * interrupt is restored once every thread has ended.
+		 */
+		void join() {
+			boolean interrupted = false;
+			for (Thread t : workers) {
+				while (t.isAlive()) {
+					try {
+						t.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			workers.clear();
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		private void work(BlockingQueue<Work> in, BlockingQueue<Work> out) throws InterruptedException {
+			while (true) {
+				long take = System.nanoTime();
+				Work work = in != null ? in.take() : next();
+				idleNanos.addAndGet(System.nanoTime() - take);
+				if (work == DONE) return;
+				if (failure != null) continue; // drain
+
+				long start = System.nanoTime();
+				try {
+					work = process(work);
+				} catch (Throwable e) {
+					Log.error(this, "Section " + name + " failed " + work.doc.getRepDocName(), e);
+					fail(e);
+					continue;
+				} finally {
+					busyNanos.addAndGet(System.nanoTime() - start);
+				}
+				items.incrementAndGet();
+
+				long put = System.nanoTime();
+				out.put(work);
+				blockedNanos.addAndGet(System.nanoTime() - put);
+			}
+		}
+
+		/*
+		 * Puts the end marker on the given queue. Once the run has failed, the work queued
+		 * is abandoned, so queued work is dropped to make room rather than waiting on a
+		 * stage that may itself have ended.
+		 */
+		private void pass(BlockingQueue<Work> q) {
+			if (failure == null) {
+				try {
+					q.put(DONE);
+					return;
+				} catch (InterruptedException e) {
+					fail(e);
+					Thread.currentThread().interrupt();
+				}
+			}
+			while (!q.offer(DONE)) {
+				q.poll();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name + "[threads=" + threads + ", docs=" + items.get() + ", busy=" + busyNanos.get() / 1000000
+					+ "ms, idle=" + idleNanos.get() / 1000000 + "ms, blocked=" + blockedNanos.get() / 1000000 + "ms]";
+		}
+	}
+}
@@ -10,15 +10,58 @@
  *******************************************************************************/
 package net.certiv.authmgr.task.section.core;
 
+import net.certiv.authmgr.db.dao.model.Corpus;
+
 import org.eclipse.core.runtime.jobs.ISchedulingRule;
 
+/**
+ * Scheduling rule of the section jobs. A rule scoped to a corpus conflicts only with
+ * section rules of the same corpus, so jobs for different corpora run concurrently. A
+ * global rule, created without a corpus, conflicts with every section rule.
+ *
+ * @author Gbr
+ */
 public class SectionRule implements ISchedulingRule {
 
+	/** the corpus name; null for a global rule */
+	private final String corpus;
+
+	/**
+	 * Creates a global rule, conflicting with every section rule.
+	 */
+	public SectionRule() {
+		this.corpus = null;
+	}
+
+	/**
+	 * Creates a rule scoped to the given corpus.
+	 */
+	public SectionRule(Corpus corpus) {
+		this.corpus = corpus != null ? corpus.getCorpusName() : null;
+	}
+
+	public boolean isGlobal() {
+		return corpus == null;
+	}
+
+	public String getCorpusName() {
+		return corpus;
+	}
+
 	public boolean contains(ISchedulingRule rule) {
-		return rule.getClass() == SectionRule.class;
+		if (rule == this) return true;
+		if (rule.getClass() != SectionRule.class) return false;
+		return isGlobal() || corpus.equals(((SectionRule) rule).corpus);
 	}
 
 	public boolean isConflicting(ISchedulingRule rule) {
-		return rule.getClass() == SectionRule.class;
+		if (rule.getClass() != SectionRule.class) return false;
+		SectionRule other = (SectionRule) rule;
+		return isGlobal() || other.isGlobal() || corpus.equals(other.corpus);
+	}
+
+	@Override
+	public String toString() {
+		return "SectionRule[" + (isGlobal() ? "global" : corpus) + "]";
 	}
 }
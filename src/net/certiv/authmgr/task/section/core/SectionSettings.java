@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core;
+
+/**
+ * Tuning settings of the section task that are not exposed as preferences. Each setting
+ * is read from the system property <code>net.certiv.authmgr.section.&lt;name&gt;</code>,
+ * falling back to its default when the property is absent or malformed.
+ *
+ * @author Gbr
+ */
+public class SectionSettings {
+
+	private static final String PREFIX = "net.certiv.authmgr.section.";
+
+	/** classify the pages of each document in parallel (default: true) */
+	public static final String PAGE_PARALLEL = "pageParallel";
+	/** documents processed concurrently by a section task run (default: 1) */
+	public static final String DOCUMENT_THREADS = "documentThreads";
+	/** run the section task as a fetch/classify/store pipeline (default: false) */
+	public static final String PIPELINE = "pipeline";
+	/** threads of the pipeline fetch stage (default: 1) */
+	public static final String FETCH_THREADS = "fetchThreads";
+	/** threads of the pipeline classify stage (default: available processors) */
+	public static final String CLASSIFY_THREADS = "classifyThreads";
+	/** threads of the pipeline store stage; stores share one session (default: 1) */
+	public static final String STORE_THREADS = "storeThreads";
+	/** capacity of each queue between pipeline stages (default: 4) */
+	public static final String QUEUE_SIZE = "queueSize";
+	/** wall-clock time, in milliseconds, a section task run is sized to take (default: 60000) */
+	public static final String TARGET_SLICE_MILLIS = "targetSliceMillis";
+	/** most documents taken by a run once its throughput is known (default: 500) */
+	public static final String MAX_DOCUMENTS = "maxDocuments";
+	/** lines assumed per document until the throughput is known (default: 400) */
+	public static final String LINES_PER_DOCUMENT = "linesPerDocument";
+	/** threads training a model, each on a partial heap model; 1 trains sequentially (default: 1) */
+	public static final String TRAIN_THREADS = "trainThreads";
+	/** training lines taught as one chunk by a parallel training thread (default: 1000) */
+	public static final String TRAIN_CHUNK_LINES = "trainChunkLines";
+	/** neighboring lines, each side, in the sliding window outside the workbench (default: 2) */
+	public static final String WINDOW = "window";
+
+	private SectionSettings() {}
+
+	public static boolean isPageParallel() {
+		return getBoolean(PAGE_PARALLEL, true);
+	}
+
+	public static int getDocumentThreads() {
+		return Math.max(1, getInt(DOCUMENT_THREADS, 1));
+	}
+
+	public static boolean isPipelined() {
+		return getBoolean(PIPELINE, false);
+	}
+
+	public static long getTargetSliceMillis() {
+		return Math.max(1, getLong(TARGET_SLICE_MILLIS, 60000));
+	}
+
+	public static int getMaxDocuments() {
+		return Math.max(1, getInt(MAX_DOCUMENTS, 500));
+	}
+
+	public static int getLinesPerDocument() {
+		return Math.max(1, getInt(LINES_PER_DOCUMENT, 400));
+	}
+
+	public static int getTrainThreads() {
+		return Math.max(1, getInt(TRAIN_THREADS, 1));
+	}
+
+	public static int getTrainChunkLines() {
+		return Math.max(1, getInt(TRAIN_CHUNK_LINES, 1000));
+	}
+
+	public static int getWindow() {
+		return Math.max(0, getInt(WINDOW, 2));
+	}
+
+	public static String getString(String name, String def) {
+		String value = System.getProperty(PREFIX + name);
+		return value != null && value.trim().length() > 0 ? value.trim() : def;
+	}
+
+	public static boolean getBoolean(String name, boolean def) {
+		String value = getString(name, null);
+		return value != null ? Boolean.parseBoolean(value) : def;
+	}
+
+	public static int getInt(String name, int def) {
+		try {
+			return Integer.parseInt(getString(name, String.valueOf(def)));
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	public static long getLong(String name, long def) {
+		try {
+			return Long.parseLong(getString(name, String.valueOf(def)));
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core;
+
+import net.certiv.authmgr.db.dao.elems.DocLine;
+import net.certiv.authmgr.db.dao.elems.DocPage;
+
+/**
+ * Single-pass, bounded-memory sectioning of a document fed one page at a time. Since the
+ * classification window is clamped to the page, a page can be classified as soon as it
+ * is known whether it is the last page of the document. The stream therefore holds at
+ * most one page: each page is classified, and handed off to the listener, when the next
+ * page is offered or the stream is closed.
+ * <p>
+ * The listener is called synchronously, so a slow consumer holds back the producer and
+ * at most one unclassified page is ever buffered. Once a page has been handed off the
+ * stream keeps no reference to it.
+ *
+ * @author Gbr
+ */
+public class SectionStream {
+
+	private final ClassifySections cs;
+	private final ISectionListener listener;
+
+	private DocPage pending;
+	private int pageIdx;
+	private int count;
+	private boolean closed;
+
+	SectionStream(ClassifySections cs, ISectionListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("ISectionListener can't be null");
+		}
+		this.cs = cs;
+		this.listener = listener;
+	}
+
+	/**
+	 * Offers the next page of the document. Classifies, and hands off, the previously
+	 * offered page.
+	 *
+	 * @param page the next page
+	 */
+	public void offer(DocPage page) {
+		if (closed) {
+			throw new IllegalStateException("Stream is closed");
+		}
+		if (pending != null) {
+			complete(false);
+		}
+		pending = page;
+	}
+
+	/**
+	 * Marks the end of the document. Classifies, and hands off, the last page.
+	 */
+	public void close() {
+		if (closed) return;
+		if (pending != null) {
+			complete(true);
+		}
+		closed = true;
+	}
+
+	/**
+	 * Returns the number of pages classified so far.
+	 */
+	public int getPageCount() {
+		return pageIdx;
+	}
+
+	/**
+	 * Returns the number of lines classified so far.
+	 */
+	public int getLineCount() {
+		return count;
+	}
+
+	private void complete(boolean lastPage) {
+		DocPage dp = pending;
+		pending = null;
+
+		long start = System.currentTimeMillis();
+		cs.annotatePage(dp, pageIdx == 0, lastPage);
+		int lines = cs.classifyPage(dp);
+		count += lines;
+		cs.status("Working [page=" + (pageIdx + 1) + ", line=" + count + "]");
+		cs.status("Page classification time: " + (System.currentTimeMillis() - start) + "ms");
+
+		for (int j = 0; j < lines; j++) {
+			DocLine dl = dp.getDocLine(j, DocPage.RANK_ORDER);
+			listener.lineClassified(pageIdx, j, dl);
+		}
+		listener.pageClassified(pageIdx, dp);
+		pageIdx++;
+	}
+}
@@ -12,6 +12,14 @@ package net.certiv.authmgr.task.section.core;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import net.certiv.authmgr.app.preferences.Prefs;
 import net.certiv.authmgr.app.preferences.PrefsKey;
@@ -35,21 +43,36 @@ public class SectionTask extends AbstractTask {
 
 	private static final boolean debug = true;
 	private static final StageEnum state = StageEnum.CLASSIFYLINES;
+	/** progress ticks of each run outside of the lines classified */
+	private static final int PROGRESS_SETUP = 2;
 
 	private DocumentServiceClient docServiceClient;
 	@SuppressWarnings("unused")
 	private Repository rep;
 	private Corpus cor;
+	private final ThroughputTracker throughput;
 
 	public SectionTask(Repository rep, Corpus corpus, int interval, int count) {
+		this(rep, corpus, interval, count, new ThroughputTracker());
+	}
+
+	/**
+	 * @param throughput the recent throughput of section runs of the corpus, typically
+	 *            shared by the controller's tasks of that corpus; used to size the work of
+	 *            each run. Runs of other corpora, which may run at the same time, must not
+	 *            share it.
+	 */
+	public SectionTask(Repository rep, Corpus corpus, int interval, int count, ThroughputTracker throughput) {
 		super();
 		this.rep = rep;
 		this.cor = corpus;
+		this.throughput = throughput;
 		setTaskName("Section Task");
 		setTaskDescription(corpus.getCorpusName());
 		setRepeatCount(repeatCount);
 		setInterval(interval);
-		setTotalTime(5 * Prefs.getInt(PrefsKey.PROCESS_CONCURRENT));
+		setTotalTime(estimateWork(nextBudget()));
+		setRule(new SectionRule(corpus));
 		announceStatusChange(Op.PENDING);
 	}
 
@@ -62,40 +85,208 @@ public class SectionTask extends AbstractTask {
 
 		monitor.worked(1);
 
-		// get convertable documents
+		WorkBudget budget = nextBudget();
+		if (debug) Log.debug(this, "Sizing run to " + budget + " at " + throughput);
+
+		// get convertable documents; the whole eligible set is loaded, though only as many
+		// as the budget allows are processed, and only their previous stages are loaded
 		Collection<Document> docs = getDocuments(docServiceClient, cor, state);
 		if (docs.size() == 0) {
 			announceStatusUpdate("No documents for sectioning");
+			docServiceClient.close();
 			return;
 		}
+		long start = System.nanoTime();
+		runDocuments(monitor, docs.iterator(), budget);
+		throughput.record(budget.getDocuments(), budget.getLines(), System.nanoTime() - start);
+
+		// size the progress of the next run to the updated rate
+		setTotalTime(estimateWork(nextBudget()));
+	}
+
+	private void runDocuments(IProgressMonitor monitor, Iterator<Document> docs, WorkBudget budget)
+			throws InvocationTargetException, InterruptedException {
 
 		monitor.worked(1);
-		int counter = Prefs.getInt(PrefsKey.PROCESS_CONCURRENT);
+
+		// one classifier, and so one loaded model, serves every document of the run
+		ClassifySections cs = new ClassifySections(this);
+
+		if (SectionSettings.isPipelined()) {
+			SectionPipeline pipeline = new SectionPipeline(this, cs);
+			pipeline.run(docs, budget, monitor);
+			announceStatusUpdate(pipeline.report());
+			docServiceClient.close();
+			return;
+		}
+
+		int threads = Math.min(budget.getMaxDocuments(), SectionSettings.getDocumentThreads());
+		if (threads > 1) {
+			runConcurrent(monitor, docs, cs, budget, threads);
+			docServiceClient.close();
+			return;
+		}
 
 		// get the file to process
-		for (Document doc : docs) {
+		while (budget.take()) {
+			if (!docs.hasNext()) {
+				budget.release();
+				break;
+			}
+			Document doc = docs.next();
 			announceStatusUpdate(doc.getRepPathPart() + doc.getRepDocName());
-			monitor.worked(1);
+			processDocument(doc, cs, budget, monitor);
+		}
+		docServiceClient.close();
+	}
 
-			// build and process the document through the section classifier
-			DocStage prevStage = getPrevStage(doc, state);
-			DocPageList pages = (DocPageList) prevStage.getPages();
-			NoteDataList notes = (NoteDataList) prevStage.getNotes();
-			String text = prevStage.getText();
+	/*
+	 * Sizes the next run. Until a run has been measured, a run takes PROCESS_CONCURRENT
+	 * documents; thereafter, as many lines as fit the target time slice at the recent rate.
+	 */
+	private WorkBudget nextBudget() {
+		long lines = throughput.lineBudget(SectionSettings.getTargetSliceMillis());
+		if (lines == 0) return new WorkBudget(Prefs.getInt(PrefsKey.PROCESS_CONCURRENT), 0);
+		return new WorkBudget(SectionSettings.getMaxDocuments(), lines);
+	}
+
+	/* Estimates the progress total, in lines, of a run of the given budget. */
+	private int estimateWork(WorkBudget budget) {
+		double perDoc = throughput.hasSamples() ? throughput.getLinesPerDocument() : SectionSettings
+				.getLinesPerDocument();
+		long lines = (long) Math.ceil(budget.getMaxDocuments() * perDoc);
+		if (budget.getMaxLines() > 0) lines = Math.min(lines, budget.getMaxLines());
+		return (int) Math.min(lines, Integer.MAX_VALUE - PROGRESS_SETUP) + PROGRESS_SETUP;
+	}
 
-			// setup and classify each line using the default model name
-			ClassifySections cs = new ClassifySections(this);
+	/**
+	 * Processes documents concurrently on a fixed pool of worker threads, for as long as
+	 * the budget allows. Documents are loaded and stored through the session they were
+	 * fetched on, one worker at a time, so the classification of one document overlaps
+	 * the reads and writes of others. No more documents are submitted than there are workers, so that the line budget is
+	 * checked against completed documents. Progress is reported, in lines, from the
+	 * calling thread as documents complete.
+	 */
+	private void runConcurrent(IProgressMonitor monitor, Iterator<Document> docs, ClassifySections cs,
+			WorkBudget budget, int threads) throws InvocationTargetException, InterruptedException {
+
+		ExecutorService exec = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private int n;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Section worker " + (++n));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		CompletionService<Integer> ecs = new ExecutorCompletionService<Integer>(exec);
+
+		Throwable failure = null;
+		try {
+			int inFlight = 0;
+			while (inFlight < threads && submitNext(ecs, docs, cs, budget)) {
+				inFlight++;
+			}
+			while (inFlight > 0) {
+				try {
+					monitor.worked(ecs.take().get());
+				} catch (ExecutionException e) {
+					if (failure == null) failure = e.getCause();
+				}
+				inFlight--;
+				if (failure == null && submitNext(ecs, docs, cs, budget)) {
+					inFlight++;
+				}
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+		if (failure instanceof InvocationTargetException) {
+			throw (InvocationTargetException) failure;
+		} else if (failure != null) {
+			throw new InvocationTargetException(failure, "Failed to section");
+		}
+	}
+
+	/* Submits the next document, if any remain and the budget allows. */
+	private boolean submitNext(CompletionService<Integer> ecs, Iterator<Document> docs, final ClassifySections cs,
+			final WorkBudget budget) {
+		if (!budget.take()) return false;
+		if (!docs.hasNext()) {
+			budget.release();
+			return false;
+		}
+		final Document doc = docs.next();
+		ecs.submit(new Callable<Integer>() {
+
+			public Integer call() throws Exception {
+				announceStatusUpdate(doc.getRepPathPart() + doc.getRepDocName());
+				return processDocument(doc, cs, budget, null);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Builds and processes a single document through the section classifier, then stores
+	 * the classified stage. The lines of the document are charged to the budget once
+	 * classified.
+	 * 
+	 * @param monitor the progress monitor to report to, in lines, or null if reported by
+	 *            the caller
+	 * @return the number of lines classified
+	 */
+	private int processDocument(Document doc, ClassifySections cs, WorkBudget budget, IProgressMonitor monitor)
+			throws InvocationTargetException {
+
+		// build and process the document through the section classifier
+		DocStage prevStage = loadPrevStage(doc);
+		DocPageList pages = (DocPageList) prevStage.getPages();
+
+		// classify each line using the default model name
+		try {
 			pages = cs.classifyLines(pages);
+		} catch (IllegalStateException e) {
+			announceStatusUpdate("Classify failed " + doc.getRepPathPart() + doc.getRepDocName());
+			throw new InvocationTargetException(e, "Failed to classify");
+		}
+		int lines = ClassifySections.countLines(pages);
+		budget.charge(lines);
 
-			announceStatusUpdate("Classified " + doc.getRepPathPart() + doc.getRepDocName());
-			monitor.worked(1);
+		announceStatusUpdate("Classified " + doc.getRepPathPart() + doc.getRepDocName());
+		if (monitor != null) monitor.worked(lines);
 
-			// save the converted document and update the status
-			DocStage stage = new DocStage();
-			stage.setStage(doc, state.toString(), text, pages, notes);
-			doc.attach(stage);
-			doc.setRevisionLevel(doc.getRevisionLevel() + 1);
-			doc.setStatus(state.next().toString());
+		storeDocument(doc, prevStage, pages);
+		return lines;
+	}
+
+	/**
+	 * Fetches the previous stage of the document, ready for classification.
+	 */
+	DocStage fetchDocument(Document doc) {
+		announceStatusUpdate(doc.getRepPathPart() + doc.getRepDocName());
+		return loadPrevStage(doc);
+	}
+
+	/*
+	 * Loads the previous stage of the document through the session the document was
+	 * fetched on. Workers load one at a time, as the session is not thread-safe.
+	 */
+	private DocStage loadPrevStage(Document doc) {
+		synchronized (docServiceClient) {
+			return getPrevStage(doc, state);
+		}
+	}
+
+	/**
+	 * Attaches the classified pages to the document as a new stage and stores the
+	 * document through the session it was fetched on. Workers store one at a time, as the
+	 * session is not thread-safe.
+	 */
+	void storeDocument(Document doc, DocStage prevStage, DocPageList pages) throws InvocationTargetException {
+		synchronized (docServiceClient) {
+			attachStage(doc, prevStage, pages);
 			try {
 				docServiceClient.saveOrUpdate(doc);
 				announceStatusUpdate("Stored " + doc.getRepPathPart() + doc.getRepDocName());
@@ -103,12 +294,19 @@ public class SectionTask extends AbstractTask {
 				announceStatusUpdate("Store failed " + doc.getRepPathPart() + doc.getRepDocName());
 				throw new InvocationTargetException(e, "Failed to save");
 			}
-			monitor.worked(1);
-
-			// end game
-			counter--;
-			if (counter == 0) break;
 		}
-		docServiceClient.close();
+	}
+
+	/* Attaches the classified pages to the document as its new stage. */
+	private void attachStage(Document doc, DocStage prevStage, DocPageList pages) {
+		NoteDataList notes = (NoteDataList) prevStage.getNotes();
+		String text = prevStage.getText();
+
+		// save the converted document and update the status
+		DocStage stage = new DocStage();
+		stage.setStage(doc, state.toString(), text, pages, notes);
+		doc.attach(stage);
+		doc.setRevisionLevel(doc.getRevisionLevel() + 1);
+		doc.setStatus(state.next().toString());
 	}
 }
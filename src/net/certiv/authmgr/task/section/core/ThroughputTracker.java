@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core;
+
+/**
+ * Tracks the recent sectioning throughput, in lines per second of wall-clock time, as an
+ * exponential moving average over completed runs. Runs are measured as a whole, so the
+ * rate reflects whatever document concurrency the runs used and the load of the machine
+ * at the time.
+ *
+ * @author Gbr
+ */
+public class ThroughputTracker {
+
+	/** weight of the latest run in the moving averages */
+	private static final double ALPHA = 0.3;
+
+	private double linesPerSecond;
+	private double linesPerDocument;
+	private int runs;
+
+	/**
+	 * Records a completed run. Runs that did no work are ignored.
+	 *
+	 * @param docs the number of documents sectioned
+	 * @param lines the number of lines classified
+	 * @param nanos the elapsed wall-clock time of the run
+	 */
+	public synchronized void record(int docs, long lines, long nanos) {
+		if (docs <= 0 || lines <= 0 || nanos <= 0) return;
+		double rate = lines * 1e9 / nanos;
+		double size = (double) lines / docs;
+		if (runs == 0) {
+			linesPerSecond = rate;
+			linesPerDocument = size;
+		} else {
+			linesPerSecond = ALPHA * rate + (1 - ALPHA) * linesPerSecond;
+			linesPerDocument = ALPHA * size + (1 - ALPHA) * linesPerDocument;
+		}
+		runs++;
+	}
+
+	/**
+	 * Returns whether any run has been recorded.
+	 */
+	public synchronized boolean hasSamples() {
+		return runs > 0;
+	}
+
+	public synchronized double getLinesPerSecond() {
+		return linesPerSecond;
+	}
+
+	public synchronized double getLinesPerDocument() {
+		return linesPerDocument;
+	}
+
+	/**
+	 * Returns the number of lines expected to be classified within the given wall-clock
+	 * time at the recent rate, or 0 if no run has been recorded.
+	 */
+	public synchronized long lineBudget(long millis) {
+		if (runs == 0) return 0;
+		return Math.max(1, (long) (linesPerSecond * millis / 1000));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Throughput[%.1f lines/s, %.1f lines/doc, runs=%d]", linesPerSecond,
+				linesPerDocument, runs);
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core;
+
+/**
+ * The work allowed to a single section task run: a cap on the number of documents and,
+ * once the throughput is known, on the number of lines. A document is taken only while
+ * both remain; lines are charged as each document is classified. Documents already taken
+ * when the line budget runs out are still completed, so a run overshoots by at most the
+ * documents in flight.
+ *
+ * @author Gbr
+ */
+public class WorkBudget {
+
+	private final int maxDocs;
+	private final long maxLines;
+
+	private int docs;
+	private long lines;
+
+	/**
+	 * @param maxDocs the maximum number of documents to take
+	 * @param maxLines the number of lines after which no further documents are taken; 0
+	 *            for no line limit
+	 */
+	public WorkBudget(int maxDocs, long maxLines) {
+		this.maxDocs = Math.max(1, maxDocs);
+		this.maxLines = Math.max(0, maxLines);
+	}
+
+	/**
+	 * Takes one document from the budget.
+	 *
+	 * @return true if the document may be processed; false once the budget is spent
+	 */
+	public synchronized boolean take() {
+		if (docs >= maxDocs) return false;
+		if (maxLines > 0 && lines >= maxLines) return false;
+		docs++;
+		return true;
+	}
+
+	/**
+	 * Returns a document taken but not processed, as when none remained to be taken.
+	 */
+	public synchronized void release() {
+		if (docs > 0) docs--;
+	}
+
+	/**
+	 * Charges the lines of a classified document against the budget.
+	 */
+	public synchronized void charge(int docLines) {
+		lines += docLines;
+	}
+
+	public int getMaxDocuments() {
+		return maxDocs;
+	}
+
+	public long getMaxLines() {
+		return maxLines;
+	}
+
+	public synchronized int getDocuments() {
+		return docs;
+	}
+
+	public synchronized long getLines() {
+		return lines;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Budget[docs=" + docs + "/" + maxDocs + ", lines=" + lines + "/" + (maxLines > 0 ? maxLines : "-")
+				+ "]";
+	}
+}
@@ -0,0 +1,607 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single-file, page-based B+tree mapping byte string keys, in unsigned lexicographic
+ * order, to byte string values. Pages are read through a cache holding a bounded number
+ * of pages, evicting the least recently used, and are written back when evicted or
+ * flushed. The tree may thus be far larger than the heap, and an update writes only the
+ * pages it changes. All values are big-endian.
+ *
+ * <pre>
+ * page 0:    magic "NBYT", u16 version, u16 flags, u32 page size, u32 page count,
+ *            u32 root page, u64 entry count
+ * leaf:      u8 type 1, u16 entry count, u32 next leaf page, 0 if the last,
+ *              then per entry: u16 key length, key, u16 value length, value
+ * internal:  u8 type 2, u16 key count, u32 first child page,
+ *              then per key: u16 key length, key, u32 child page
+ * </pre>
+ *
+ * The child following a key of an internal page holds the keys not less than it. Leaves
+ * are chained in key order, so a range of keys is scanned without revisiting the
+ * internal pages. Entries are never removed.
+ * <p>
+ * The flags record whether the file was flushed after its last change. A file changed
+ * since, as by a crash between flushes, may be inconsistent and is refused on open. Pages
+ * are written in place, without a journal, so such a file cannot be recovered: it must be
+ * rebuilt from its training files. A tree is therefore best built in a new file, put in
+ * place only once flushed, as by {@code ModelTrainer.trainTree}.
+ * Every method is synchronized on the tree.
+ *
+ * @author Gbr
+ */
+public class BTreeFile {
+
+	public static final byte[] MAGIC = { 'N', 'B', 'Y', 'T' };
+	public static final int VERSION = 1;
+	public static final int PAGE_SIZE = 8192;
+
+	/** longest keys and values accepted; any three entries then fit in a page */
+	public static final int MAX_KEY = 1024;
+	public static final int MAX_VALUE = 1024;
+
+	private static final int HEADER_SIZE = 28;
+	private static final int NODE_HEADER = 7;
+	private static final byte LEAF = 1;
+	private static final byte INTERNAL = 2;
+	private static final int CLEAN = 1;
+
+	/**
+	 * Receives the entries of a range scan, in key order.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Visits one entry. The visitor may read the tree, but must not update it other
+		 * than through its result.
+		 *
+		 * @return a replacement value, of the same length, or null to keep the value
+		 */
+		byte[] visit(byte[] key, byte[] value) throws IOException;
+	}
+
+	/* A page, as held in the cache. */
+	private static class Node {
+
+		final int page;
+		final boolean leaf;
+		final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		/** leaf values, by key */
+		final ArrayList<byte[]> values;
+		/** internal child pages; one more than the keys */
+		final ArrayList<Integer> children;
+		int next;
+		int size = NODE_HEADER;
+		boolean dirty;
+
+		Node(int page, boolean leaf) {
+			this.page = page;
+			this.leaf = leaf;
+			values = leaf ? new ArrayList<byte[]>() : null;
+			children = leaf ? null : new ArrayList<Integer>();
+		}
+
+		int entrySize(int idx) {
+			return leaf ? 4 + keys.get(idx).length + values.get(idx).length : 6 + keys.get(idx).length;
+		}
+
+		void resize() {
+			size = NODE_HEADER;
+			for (int idx = 0; idx < keys.size(); idx++) {
+				size += entrySize(idx);
+			}
+		}
+	}
+
+	private final File file;
+	private final FileChannel channel;
+	private final boolean readOnly;
+	private final int capacity;
+	private final LinkedHashMap<Integer, Node> cache;
+
+	private int pageCount;
+	private int root;
+	private long entries;
+	private boolean clean;
+
+	private BTreeFile(File file, FileChannel channel, boolean readOnly, int capacity) {
+		this.file = file;
+		this.channel = channel;
+		this.readOnly = readOnly;
+		this.capacity = Math.max(8, capacity);
+		this.cache = new LinkedHashMap<Integer, Node>(16, 0.75f, true);
+	}
+
+	/**
+	 * Opens the tree held in the given file, creating an empty tree if the file does not
+	 * exist and the tree is opened for update.
+	 *
+	 * @param f the tree file
+	 * @param cachePages the most pages to hold in the cache
+	 * @param readOnly whether to open the file for reading only
+	 * @return the open tree
+	 * @throws IOException if the file cannot be opened, is not a tree, or was not flushed
+	 *             after its last change
+	 */
+	public static BTreeFile open(File f, int cachePages, boolean readOnly) throws IOException {
+		boolean create = !readOnly && (!f.exists() || f.length() == 0);
+		FileChannel channel = readOnly ? FileChannel.open(f.toPath(), StandardOpenOption.READ) : FileChannel.open(
+				f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		BTreeFile tree = new BTreeFile(f, channel, readOnly, cachePages);
+		try {
+			if (create) {
+				tree.pageCount = 1;
+				tree.root = tree.allocate(true).page;
+				tree.clean = false;
+				tree.flush();
+			} else {
+				tree.readHeader();
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return tree;
+	}
+
+	/**
+	 * Returns whether the given file holds a tree.
+	 */
+	public static boolean isTree(File f) {
+		if (f.length() < HEADER_SIZE) return false;
+		try {
+			FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer buf = ByteBuffer.allocate(MAGIC.length);
+				readFully(channel, buf, 0);
+				return buf.getInt(0) == ByteBuffer.wrap(MAGIC).getInt();
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Returns the value of the given key, or null if the key is not present.
+	 */
+	public synchronized byte[] get(byte[] key) throws IOException {
+		Node n = node(root);
+		while (!n.leaf) {
+			n = node(n.children.get(upperBound(n.keys, key)));
+		}
+		int idx = lowerBound(n.keys, key);
+		byte[] value = idx < n.keys.size() && compare(n.keys.get(idx), key) == 0 ? n.values.get(idx) : null;
+		evict();
+		return value;
+	}
+
+	/**
+	 * Returns the values of the given keys, null where a key is not present. The keys are
+	 * looked up in key order, so that each leaf holding any of them is descended to once.
+	 */
+	public synchronized byte[][] get(final byte[][] keys) throws IOException {
+		Integer[] order = new Integer[keys.length];
+		for (int idx = 0; idx < order.length; idx++) {
+			order[idx] = idx;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			public int compare(Integer a, Integer b) {
+				return BTreeFile.compare(keys[a], keys[b]);
+			}
+		});
+
+		byte[][] values = new byte[keys.length][];
+		Node n = null;
+		for (Integer k : order) {
+			byte[] key = keys[k];
+			// a leaf holds every key from the last key found in it up to its own last key
+			if (n == null || n.keys.isEmpty() || compare(key, n.keys.get(n.keys.size() - 1)) > 0) {
+				n = node(root);
+				while (!n.leaf) {
+					n = node(n.children.get(upperBound(n.keys, key)));
+				}
+			}
+			int idx = lowerBound(n.keys, key);
+			if (idx < n.keys.size() && compare(n.keys.get(idx), key) == 0) values[k] = n.values.get(idx);
+		}
+		evict();
+		return values;
+	}
+
+	/**
+	 * Sets the value of the given key, adding the key if not present. Full pages are split
+	 * on the way back up from the leaf.
+	 */
+	public synchronized void put(byte[] key, byte[] value) throws IOException {
+		checkWritable();
+		if (key.length > MAX_KEY || value.length > MAX_VALUE) {
+			throw new IOException("Entry too large for tree " + file + ": " + key.length + "/" + value.length);
+		}
+		changed();
+
+		List<Node> path = new ArrayList<Node>();
+		List<Integer> slots = new ArrayList<Integer>();
+		Node n = node(root);
+		while (!n.leaf) {
+			int slot = upperBound(n.keys, key);
+			path.add(n);
+			slots.add(slot);
+			n = node(n.children.get(slot));
+		}
+		int idx = lowerBound(n.keys, key);
+		if (idx < n.keys.size() && compare(n.keys.get(idx), key) == 0) {
+			n.size += value.length - n.values.get(idx).length;
+			n.values.set(idx, value);
+		} else {
+			n.keys.add(idx, key);
+			n.values.add(idx, value);
+			n.size += 4 + key.length + value.length;
+			entries++;
+		}
+		n.dirty = true;
+
+		// nodes on the path stay cached until the update completes
+		for (int level = path.size(); n.size > PAGE_SIZE; level--) {
+			Node right = allocate(n.leaf);
+			byte[] separator = n.leaf ? splitLeaf(n, right) : splitInternal(n, right);
+			Node parent;
+			int slot;
+			if (level == 0) {
+				parent = allocate(false);
+				parent.children.add(n.page);
+				root = parent.page;
+				slot = 0;
+			} else {
+				parent = path.get(level - 1);
+				slot = slots.get(level - 1);
+			}
+			parent.keys.add(slot, separator);
+			parent.children.add(slot + 1, right.page);
+			parent.size += 6 + separator.length;
+			parent.dirty = true;
+			n = parent;
+		}
+		evict();
+	}
+
+	/**
+	 * Visits, in key order, every entry whose key starts with the given prefix.
+	 */
+	public synchronized void scan(byte[] prefix, Visitor visitor) throws IOException {
+		Node n = node(root);
+		while (!n.leaf) {
+			n = node(n.children.get(upperBound(n.keys, prefix)));
+		}
+		int page = n.page;
+		int idx = lowerBound(n.keys, prefix);
+		while (page != 0) {
+			// refetched at each entry, as the visitor may cause the page to be evicted
+			n = node(page);
+			if (idx >= n.keys.size()) {
+				page = n.next;
+				idx = 0;
+				continue;
+			}
+			byte[] key = n.keys.get(idx);
+			if (!startsWith(key, prefix)) break;
+
+			byte[] value = visitor.visit(key, n.values.get(idx));
+			if (value != null) {
+				checkWritable();
+				n = node(page);
+				if (value.length != n.values.get(idx).length) {
+					throw new IllegalArgumentException("Replacement value length differs");
+				}
+				changed();
+				n.values.set(idx, value);
+				n.dirty = true;
+			}
+			idx++;
+			evict();
+		}
+		evict();
+	}
+
+	/**
+	 * Returns the number of entries in the tree.
+	 */
+	public synchronized long size() {
+		return entries;
+	}
+
+	/**
+	 * Returns the number of pages in the file, the header page included.
+	 */
+	public synchronized int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Returns the most pages held in the cache.
+	 */
+	public int getCacheCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Writes every changed page, then the header, marking the file clean.
+	 */
+	public synchronized void flush() throws IOException {
+		if (readOnly || clean) return;
+		for (Node n : cache.values()) {
+			if (n.dirty) write(n);
+		}
+		channel.force(false);
+		writeHeader(CLEAN);
+		channel.force(true);
+		clean = true;
+	}
+
+	/**
+	 * Flushes the tree, if open for update, and closes the file.
+	 */
+	public synchronized void close() throws IOException {
+		if (!channel.isOpen()) return;
+		try {
+			flush();
+		} finally {
+			cache.clear();
+			channel.close();
+		}
+	}
+
+	// ///////////////////////////////////////////////////////////////////////////////
+
+	/* Marks the file as changed on disk before the first page of a change is written. */
+	private void changed() throws IOException {
+		if (!clean) return;
+		writeHeader(0);
+		channel.force(false);
+		clean = false;
+	}
+
+	private void checkWritable() throws IOException {
+		if (readOnly) throw new IOException("Tree is read-only: " + file);
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+		if (readFully(channel, buf, 0) < HEADER_SIZE) throw new IOException("Not a tree: too short: " + file);
+		buf.flip();
+		for (byte b : MAGIC) {
+			if (buf.get() != b) throw new IOException("Not a tree: bad magic number: " + file);
+		}
+		int version = buf.getShort() & 0xffff;
+		if (version != VERSION) throw new IOException("Unsupported tree version " + version + ": " + file);
+		int flags = buf.getShort() & 0xffff;
+		int pageSize = buf.getInt();
+		if (pageSize != PAGE_SIZE) throw new IOException("Unsupported tree page size " + pageSize + ": " + file);
+		if ((flags & CLEAN) == 0) throw new IOException("Tree was not flushed after its last change: " + file);
+		pageCount = buf.getInt();
+		root = buf.getInt();
+		entries = buf.getLong();
+		clean = true;
+	}
+
+	private void writeHeader(int flags) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+		buf.put(MAGIC).putShort((short) VERSION).putShort((short) flags).putInt(PAGE_SIZE).putInt(pageCount)
+				.putInt(root).putLong(entries);
+		buf.flip();
+		writeFully(buf, 0);
+	}
+
+	/* Returns the node of the given page, reading the page if not cached. */
+	private Node node(int page) throws IOException {
+		Node n = cache.get(page);
+		if (n == null) {
+			n = read(page);
+			cache.put(page, n);
+		}
+		return n;
+	}
+
+	private Node allocate(boolean leaf) {
+		Node n = new Node(pageCount++, leaf);
+		n.dirty = true;
+		cache.put(n.page, n);
+		return n;
+	}
+
+	/* Writes back and drops least recently used pages until within the cache capacity. */
+	private void evict() throws IOException {
+		for (Iterator<Map.Entry<Integer, Node>> it = cache.entrySet().iterator(); it.hasNext()
+				&& cache.size() > capacity;) {
+			Node n = it.next().getValue();
+			if (n.dirty) write(n);
+			it.remove();
+		}
+	}
+
+	/* Moves the upper half, by size, of a full leaf to the given new leaf. */
+	private byte[] splitLeaf(Node left, Node right) {
+		int mid = splitPoint(left, 1);
+		right.keys.addAll(left.keys.subList(mid, left.keys.size()));
+		right.values.addAll(left.values.subList(mid, left.values.size()));
+		left.keys.subList(mid, left.keys.size()).clear();
+		left.values.subList(mid, left.values.size()).clear();
+		right.next = left.next;
+		left.next = right.page;
+		left.resize();
+		right.resize();
+		return right.keys.get(0);
+	}
+
+	/* Moves the upper half of a full internal node to the given new node; the middle key moves up. */
+	private byte[] splitInternal(Node left, Node right) {
+		int mid = Math.min(splitPoint(left, 1), left.keys.size() - 2);
+		byte[] separator = left.keys.get(mid);
+		right.keys.addAll(left.keys.subList(mid + 1, left.keys.size()));
+		right.children.addAll(left.children.subList(mid + 1, left.children.size()));
+		left.keys.subList(mid, left.keys.size()).clear();
+		left.children.subList(mid + 1, left.children.size()).clear();
+		left.resize();
+		right.resize();
+		return separator;
+	}
+
+	/* Returns the index of the first entry past half the size of the node. */
+	private static int splitPoint(Node n, int least) {
+		int half = (n.size - NODE_HEADER) / 2;
+		int acc = 0;
+		int idx = 0;
+		while (idx < n.keys.size() - 1 && (idx < least || acc < half)) {
+			acc += n.entrySize(idx++);
+		}
+		return idx;
+	}
+
+	private Node read(int page) throws IOException {
+		if (page <= 0 || page >= pageCount) throw new IOException("Bad page " + page + " in tree " + file);
+		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		readFully(channel, buf, (long) page * PAGE_SIZE);
+		buf.flip();
+		byte type = buf.get();
+		if (type != LEAF && type != INTERNAL) throw new IOException("Bad page " + page + " in tree " + file);
+		Node n = new Node(page, type == LEAF);
+		int count = buf.getShort() & 0xffff;
+		if (n.leaf) {
+			n.next = buf.getInt();
+			for (int idx = 0; idx < count; idx++) {
+				n.keys.add(bytes(buf, buf.getShort() & 0xffff));
+				n.values.add(bytes(buf, buf.getShort() & 0xffff));
+			}
+		} else {
+			n.children.add(buf.getInt());
+			for (int idx = 0; idx < count; idx++) {
+				n.keys.add(bytes(buf, buf.getShort() & 0xffff));
+				n.children.add(buf.getInt());
+			}
+		}
+		n.resize();
+		return n;
+	}
+
+	private void write(Node n) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		buf.put(n.leaf ? LEAF : INTERNAL).putShort((short) n.keys.size());
+		if (n.leaf) {
+			buf.putInt(n.next);
+			for (int idx = 0; idx < n.keys.size(); idx++) {
+				buf.putShort((short) n.keys.get(idx).length).put(n.keys.get(idx));
+				buf.putShort((short) n.values.get(idx).length).put(n.values.get(idx));
+			}
+		} else {
+			buf.putInt(n.children.get(0));
+			for (int idx = 0; idx < n.keys.size(); idx++) {
+				buf.putShort((short) n.keys.get(idx).length).put(n.keys.get(idx));
+				buf.putInt(n.children.get(idx + 1));
+			}
+		}
+		buf.clear();
+		writeFully(buf, (long) n.page * PAGE_SIZE);
+		n.dirty = false;
+	}
+
+	private void writeFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += channel.write(buf, position);
+		}
+	}
+
+	private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int total = 0;
+		while (buf.hasRemaining()) {
+			int r = channel.read(buf, position + total);
+			if (r < 0) break;
+			total += r;
+		}
+		return total;
+	}
+
+	private static byte[] bytes(ByteBuffer buf, int length) {
+		byte[] b = new byte[length];
+		buf.get(b);
+		return b;
+	}
+
+	/* Returns the index of the first key not less than the given key. */
+	private static int lowerBound(List<byte[]> keys, byte[] key) {
+		int lo = 0;
+		int hi = keys.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(keys.get(mid), key) < 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/* Returns the index of the first key greater than the given key. */
+	private static int upperBound(List<byte[]> keys, byte[] key) {
+		int lo = 0;
+		int hi = keys.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compare(keys.get(mid), key) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int idx = 0; idx < n; idx++) {
+			int c = (a[idx] & 0xff) - (b[idx] & 0xff);
+			if (c != 0) return c;
+		}
+		return a.length - b.length;
+	}
+
+	static boolean startsWith(byte[] key, byte[] prefix) {
+		if (key.length < prefix.length) return false;
+		for (int idx = 0; idx < prefix.length; idx++) {
+			if (key[idx] != prefix[idx]) return false;
+		}
+		return true;
+	}
+}
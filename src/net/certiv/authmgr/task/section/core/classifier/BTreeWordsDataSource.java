@@ -0,0 +1,398 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.certiv.authmgr.app.util.Log;
+import net.sf.classifier4J.bayesian.WordsDataSourceException;
+
+/**
+ * A data source held on disk in a {@link BTreeFile}, for models larger than the heap.
+ * Only the pages of the tree in use are cached on the heap, and an update writes back
+ * only the pages it changes, so a model is persisted by a {@link #flush()} rather than
+ * by rewriting the whole of the file.
+ * <p>
+ * Each word is an entry keyed on its category, partition and word, so that the words of
+ * a partition are contiguous and are updated by a single range scan. The matched word
+ * total of each partition is an entry keyed on its category and partition; the totals
+ * are held on the heap while the data source is open. The word term totals of each
+ * category are not stored, but summed over the partitions as the probabilities are
+ * updated.
+ *
+ * <pre>
+ * word key:    u8 1, UTF-8 category, u8 0, UTF-8 partition, u8 0, UTF-8 word
+ * word value:  i64 matching count, i64 non-matching count, i64 training partition count,
+ *              i64 training category count, f64 probability
+ * total key:   u8 0, UTF-8 category, u8 0, UTF-8 partition
+ * total value: i64 matched word total
+ * </pre>
+ *
+ * Every method is synchronized, as the tree is. A tree model therefore serves one lookup
+ * at a time: classifying the pages of a document, or a batch, in parallel gains nothing
+ * over classifying them in turn.
+ *
+ * @author Gbr
+ */
+public class BTreeWordsDataSource implements IPartitionedWordsDataSource, Closeable {
+
+	/** default page cache size: 32MB of pages */
+	public static final int DEFAULT_CACHE_PAGES = 4096;
+
+	private static final byte TOTAL = 0;
+	private static final byte WORD = 1;
+	private static final int VALUE_SIZE = 40;
+
+	private final BTreeFile tree;
+	/** matched word totals by category and partition */
+	private final HashMap<String, TreeMap<String, Long>> totals = new HashMap<String, TreeMap<String, Long>>();
+	/** public partition labels by category and reserved labels */
+	private final HashMap<String, String[]> publicCache = new HashMap<String, String[]>();
+	private boolean totalsChanged;
+
+	private BTreeWordsDataSource(BTreeFile tree) throws IOException {
+		this.tree = tree;
+		tree.scan(new byte[] { TOTAL }, new BTreeFile.Visitor() {
+
+			public byte[] visit(byte[] key, byte[] value) {
+				String[] names = split(key);
+				// the totals partition of older models; the totals are derived
+				if (names[1].equals(BayesPartitionClassifier.SPACE_TOTALS)) return null;
+				partitions(names[0]).put(names[1], Long.valueOf(ByteBuffer.wrap(value).getLong()));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Opens the model held in the given file for update, creating an empty model if the
+	 * file does not exist.
+	 */
+	public static BTreeWordsDataSource open(File f) throws IOException {
+		return open(f, DEFAULT_CACHE_PAGES, false);
+	}
+
+	/**
+	 * Opens the model held in the given file.
+	 *
+	 * @param f the model file
+	 * @param cachePages the most pages of the file to hold on the heap
+	 * @param readOnly whether to open the model for classification only
+	 * @return the data source
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static BTreeWordsDataSource open(File f, int cachePages, boolean readOnly) throws IOException {
+		BTreeFile tree = BTreeFile.open(f, cachePages, readOnly);
+		try {
+			return new BTreeWordsDataSource(tree);
+		} catch (IOException e) {
+			tree.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return tree.getFile();
+	}
+
+	/**
+	 * Adds the words of every partition of the given model, replacing any words of the
+	 * same category and partition, then flushes the model.
+	 */
+	public synchronized void importModel(PersistantWordsDataSource pds) throws IOException,
+			WordsDataSourceException {
+		for (String category : pds.getCategoryList()) {
+			for (String partition : pds.getPartitionNames(category)) {
+				if (partition.equals(BayesPartitionClassifier.SPACE_TOTALS)) continue;
+				long total = 0;
+				for (WordProbabilityPT wp : pds.getWords(category, partition).values()) {
+					byte[] key = key(category, partition, wp.getWord());
+					if (key == null) {
+						throw new WordsDataSourceException("Word too long for model: " + wp.getWord().length()
+								+ " characters");
+					}
+					tree.put(key, encode(wp));
+					total += wp.getMatchingCount();
+				}
+				setTotal(category, partition, total);
+			}
+		}
+		flush();
+	}
+
+	public synchronized WordProbabilityPT getWordProbability(String category, String partition, String word)
+			throws WordsDataSourceException {
+		byte[] key = key(category, partition, word);
+		if (key == null) return null;
+		try {
+			byte[] value = tree.get(key);
+			return value != null ? decode(word, value) : null;
+		} catch (IOException e) {
+			throw new WordsDataSourceException("Model read failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the word probabilities of the given terms in each of the given partitions,
+	 * looked up together in key order, so that the terms of each partition share the
+	 * descent to their leaves.
+	 */
+	public synchronized WordProbabilityPT[][] getWordProbabilities(String category, String[] partitions,
+			String[] terms) throws WordsDataSourceException {
+		WordProbabilityPT[][] wps = new WordProbabilityPT[partitions.length][terms.length];
+		byte[][] keys = new byte[partitions.length * terms.length][];
+		for (int p = 0, k = 0; p < partitions.length; p++) {
+			for (int t = 0; t < terms.length; t++, k++) {
+				byte[] key = key(category, partitions[p], terms[t]);
+				// too long to have been added
+				keys[k] = key != null ? key : new byte[0];
+			}
+		}
+		try {
+			byte[][] values = tree.get(keys);
+			for (int p = 0, k = 0; p < partitions.length; p++) {
+				for (int t = 0; t < terms.length; t++, k++) {
+					if (values[k] != null) wps[p][t] = decode(terms[t], values[k]);
+				}
+			}
+		} catch (IOException e) {
+			throw new WordsDataSourceException("Model read failed: " + e.getMessage());
+		}
+		return wps;
+	}
+
+	public synchronized void addMatch(String category, String partition, String word)
+			throws WordsDataSourceException {
+		if (partition.equals(BayesPartitionClassifier.SPACE_TOTALS)) return;
+		byte[] key = key(category, partition, word);
+		if (key == null) {
+			throw new WordsDataSourceException("Word too long for model: " + word.length() + " characters");
+		}
+		try {
+			byte[] value = tree.get(key);
+			if (value == null) {
+				value = encode(new WordProbabilityPT(word, 1, 0));
+			} else {
+				ByteBuffer buf = ByteBuffer.wrap(value.clone());
+				buf.putLong(0, buf.getLong(0) + 1);
+				value = buf.array();
+			}
+			tree.put(key, value);
+		} catch (IOException e) {
+			throw new WordsDataSourceException("Model update failed: " + e.getMessage());
+		}
+		Long total = partitions(category).get(partition);
+		setTotal(category, partition, total != null ? total.longValue() + 1 : 1);
+	}
+
+	/**
+	 * Updates the word probabilities of the partition in a single scan of its words,
+	 * summing the total of each word over the partitions of the category.
+	 */
+	public synchronized void updateWordProbabilities(final String category, String partition,
+			final String totalsLabel, final int cnt, final int cntTotal) throws WordsDataSourceException {
+		TreeMap<String, Long> known = totals.get(category);
+		if (known == null || !known.containsKey(partition)) {
+			Log.warn(this, "Word probabilities update failed.");
+			return;
+		}
+		final byte[] prefix = prefix(category, partition);
+		final byte[][] prefixes = new byte[known.size()][];
+		int idx = 0;
+		for (String label : known.keySet()) {
+			prefixes[idx++] = prefix(category, label);
+		}
+		try {
+			tree.scan(prefix, new BTreeFile.Visitor() {
+
+				public byte[] visit(byte[] key, byte[] value) throws IOException {
+					byte[][] keys = new byte[prefixes.length][];
+					for (int p = 0; p < prefixes.length; p++) {
+						keys[p] = new byte[prefixes[p].length + key.length - prefix.length];
+						System.arraycopy(prefixes[p], 0, keys[p], 0, prefixes[p].length);
+						System.arraycopy(key, prefix.length, keys[p], prefixes[p].length, key.length - prefix.length);
+					}
+					long sum = 0;
+					for (byte[] counts : tree.get(keys)) {
+						if (counts != null) sum += ByteBuffer.wrap(counts).getLong(0);
+					}
+
+					ByteBuffer buf = ByteBuffer.wrap(value.clone());
+					double mcnt = buf.getLong(0);
+					double tcnt = sum;
+					double A = mcnt / cnt;
+					double B = (tcnt - mcnt) / (cntTotal - cnt);
+					double ratio = A / (A + B);
+					ratio = (0.5f + (mcnt * ratio)) / (1.0f + mcnt);
+					buf.putLong(16, cnt).putLong(24, cntTotal).putDouble(32, ratio);
+					return buf.array();
+				}
+			});
+		} catch (IOException e) {
+			throw new WordsDataSourceException("Model update failed: " + e.getMessage());
+		}
+	}
+
+	public synchronized String[] getPartitionList(String category) {
+		TreeMap<String, Long> partitions = totals.get(category);
+		if (partitions == null) return null;
+		return partitions.keySet().toArray(new String[partitions.size()]);
+	}
+
+	public synchronized String[] getPartitionList(String category, String nonPublics) {
+		String key = category + "/" + nonPublics;
+		String[] publicList = publicCache.get(key);
+		if (publicList != null) return publicList;
+
+		String[] fullList = getPartitionList(category);
+		List<String> l = fullList != null ? new LinkedList<String>(Arrays.asList(fullList))
+				: new ArrayList<String>();
+		for (String element : nonPublics.split("\\s")) {
+			l.remove(element);
+		}
+		publicList = l.toArray(new String[l.size()]);
+		publicCache.put(key, publicList);
+		return publicList;
+	}
+
+	public synchronized int getMatchWordCount(String category) {
+		TreeMap<String, Long> partitions = totals.get(category);
+		if (partitions == null) return 0;
+		long total = 0;
+		for (Long count : partitions.values()) {
+			total += count.longValue();
+		}
+		return (int) total;
+	}
+
+	public synchronized int getMatchWordCount(String category, String partition) {
+		TreeMap<String, Long> partitions = totals.get(category);
+		Long count = partitions != null ? partitions.get(partition) : null;
+		return count != null ? count.intValue() : 0;
+	}
+
+	/**
+	 * Returns the heap held by a full page cache.
+	 */
+	public long estimateSize() {
+		return (long) tree.getCacheCapacity() * BTreeFile.PAGE_SIZE;
+	}
+
+	/**
+	 * Writes the partition totals and every changed page to the file.
+	 */
+	public synchronized void flush() throws IOException {
+		if (tree.isReadOnly()) return;
+		if (totalsChanged) {
+			for (Map.Entry<String, TreeMap<String, Long>> category : totals.entrySet()) {
+				for (Map.Entry<String, Long> partition : category.getValue().entrySet()) {
+					tree.put(totalKey(category.getKey(), partition.getKey()),
+							ByteBuffer.allocate(8).putLong(partition.getValue().longValue()).array());
+				}
+			}
+			totalsChanged = false;
+		}
+		tree.flush();
+	}
+
+	/**
+	 * Flushes and closes the model file.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			tree.close();
+		}
+	}
+
+	// ///////////////////////////////////////////////////////////////////////////////
+
+	private TreeMap<String, Long> partitions(String category) {
+		TreeMap<String, Long> partitions = totals.get(category);
+		if (partitions == null) {
+			partitions = new TreeMap<String, Long>();
+			totals.put(category, partitions);
+		}
+		return partitions;
+	}
+
+	private void setTotal(String category, String partition, long total) {
+		if (partitions(category).put(partition, Long.valueOf(total)) == null) {
+			publicCache.clear();
+		}
+		totalsChanged = true;
+	}
+
+	/* The key of a word; null if too long for the tree. */
+	private static byte[] key(String category, String partition, String word) {
+		byte[] prefix = prefix(category, partition);
+		byte[] w = word.getBytes(StandardCharsets.UTF_8);
+		if (prefix.length + w.length > BTreeFile.MAX_KEY) return null;
+		byte[] key = Arrays.copyOf(prefix, prefix.length + w.length);
+		System.arraycopy(w, 0, key, prefix.length, w.length);
+		return key;
+	}
+
+	/* The key prefix shared by the words of a partition. */
+	private static byte[] prefix(String category, String partition) {
+		byte[] c = category.getBytes(StandardCharsets.UTF_8);
+		byte[] p = partition.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(c.length + p.length + 3);
+		buf.put(WORD).put(c).put((byte) 0).put(p).put((byte) 0);
+		return buf.array();
+	}
+
+	private static byte[] totalKey(String category, String partition) {
+		byte[] c = category.getBytes(StandardCharsets.UTF_8);
+		byte[] p = partition.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(c.length + p.length + 2);
+		buf.put(TOTAL).put(c).put((byte) 0).put(p);
+		return buf.array();
+	}
+
+	/* Splits a total key into its category and partition. */
+	private static String[] split(byte[] key) {
+		int sep = 1;
+		while (key[sep] != 0) {
+			sep++;
+		}
+		return new String[] { new String(key, 1, sep - 1, StandardCharsets.UTF_8),
+				new String(key, sep + 1, key.length - sep - 1, StandardCharsets.UTF_8) };
+	}
+
+	private static byte[] encode(WordProbabilityPT wp) {
+		ByteBuffer buf = ByteBuffer.allocate(VALUE_SIZE);
+		buf.putLong(wp.getMatchingCount()).putLong(wp.getNonMatchingCount()).putLong(wp.getTrainingPartition())
+				.putLong(wp.getTrainingCategory()).putDouble(wp.getProbability());
+		return buf.array();
+	}
+
+	private static WordProbabilityPT decode(String word, byte[] value) {
+		ByteBuffer buf = ByteBuffer.wrap(value);
+		WordProbabilityPT wp = new WordProbabilityPT(word, buf.getLong(), buf.getLong());
+		wp.setTrainingPartition(buf.getLong());
+		wp.setTrainingCategory(buf.getLong());
+		wp.setProbability(buf.getDouble());
+		return wp;
+	}
+}
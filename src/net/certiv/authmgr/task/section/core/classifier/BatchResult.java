@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+/**
+ * The result of a batch classification. For each message of the batch, holds the index
+ * of the best matching partition and the margin by which its score exceeds that of the
+ * runner-up partition.
+ *
+ * @author Gbr
+ */
+public class BatchResult {
+
+	/** the partition labels, in index order */
+	private final String[] partitions;
+	/** best matching partition index per message; -1 if none */
+	final int[] best;
+	/** best score less the runner-up score per message */
+	final double[] margins;
+
+	BatchResult(String[] partitions, int size) {
+		this.partitions = partitions != null ? partitions : new String[0];
+		this.best = new int[size];
+		this.margins = new double[size];
+	}
+
+	/**
+	 * Returns the number of messages classified.
+	 */
+	public int size() {
+		return best.length;
+	}
+
+	/**
+	 * Returns the labels of the partitions that the partition indices refer to.
+	 */
+	public String[] getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * Returns the best matching partition indices, one per message. An index of -1
+	 * indicates that no partition scored above zero.
+	 */
+	public int[] getPartitionIndices() {
+		return best;
+	}
+
+	/**
+	 * Returns the score margins, one per message, of the best matching partition over the
+	 * runner-up.
+	 */
+	public double[] getMargins() {
+		return margins;
+	}
+
+	/**
+	 * Returns the label of the best matching partition for the given message, or null if
+	 * no partition scored above zero.
+	 */
+	public String getPartition(int message) {
+		int idx = best[message];
+		return idx < 0 ? null : partitions[idx];
+	}
+
+	public double getMargin(int message) {
+		return margins[message];
+	}
+}
@@ -12,8 +12,13 @@ package net.certiv.authmgr.task.section.core.classifier;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 import net.certiv.authmgr.app.util.Log;
 import net.certiv.authmgr.app.util.Util;
@@ -124,6 +129,17 @@ import org.apache.commons.lang.StringUtils;
  * distinctiveness. Additionally, calculation of log values is (generally thought)
  * computationally intensive. So, until we can prove out where the true issues lie, do
  * nothing for now.
+ * <p>
+ * Concurrency: <br>
+ * ------------ <br>
+ * The classification path is reentrant. Each request reads the model snapshot once and
+ * keeps all intermediate state local, so a single classifier over a frozen model may be
+ * shared by any number of threads, given a thread-safe tokenizer such as the
+ * CombinedTokenFilter. Matches may be taught by any number of threads at once to a
+ * {@link PersistantWordsDataSource} training concurrently, as started by its
+ * startConcurrentTraining; the training counts are kept for concurrent use too. The
+ * remaining training calls, initTrainingCount and the probability updates among them,
+ * are not thread-safe, and are made once the teaching threads have finished.
  * 
  * @author Gbr
  */
@@ -131,16 +147,25 @@ public class BayesPartitionClassifier {
 
 	private boolean debug = false;
 
-	PersistantWordsDataSource wordsData;
-	ITokenizer tokenizer;
-	IStopWordProvider stopWordProvider;
+	/** the model; read once per request so a model swap never splits a request */
+	final ModelHandle model;
+	final ITokenizer tokenizer;
+	final IStopWordProvider stopWordProvider;
 
 	private boolean isCaseSensitive = false;
 	private static final double MAX_PROBABILITY = 1;
+	/** messages scored sequentially by each batch task */
+	private static final int BATCH_GRAIN = 16;
 	/** the reserved partition to store sample space totals */
 	public static final String SPACE_TOTALS = "SPACE_TOTALS";
-	/** Accumulator data structure for training counts */
-	HashMap<String, HashMap<String, Integer>> categoryCounter = null;
+	private static final Pattern leadingDigits = Pattern.compile("^\\d+.*");
+	private static final Pattern embeddedDigits = Pattern.compile(".+\\d{2}.*");
+
+	/**
+	 * Accumulator data structure for training counts; used only while training. Concurrent,
+	 * so that any number of threads may teach the classifier at once.
+	 */
+	volatile ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> categoryCounter = null;
 
 	/**
 	 * Default constructor that implements by default a PersistantWordsDataSource and a
@@ -156,7 +181,7 @@ public class BayesPartitionClassifier {
 	 * 
 	 * @param wd a {@link net.sf.classifier4J.bayesian.IWordsDataSource}
 	 */
-	public BayesPartitionClassifier(PersistantWordsDataSource wd) {
+	public BayesPartitionClassifier(IPartitionedWordsDataSource wd) {
 		this(wd, new DefaultTokenizer(DefaultTokenizer.BREAK_ON_WORD_BREAKS));
 	}
 
@@ -166,7 +191,7 @@ public class BayesPartitionClassifier {
 	 * @param wd a {@link net.sf.classifier4J.bayesian.IWordsDataSource}
 	 * @param tokenizer a {@link net.sf.classifier4J.ITokenizer}
 	 */
-	public BayesPartitionClassifier(PersistantWordsDataSource wd, ITokenizer tokenizer) {
+	public BayesPartitionClassifier(IPartitionedWordsDataSource wd, ITokenizer tokenizer) {
 		this(wd, tokenizer, new DefaultStopWordsProvider());
 	}
 
@@ -178,11 +203,34 @@ public class BayesPartitionClassifier {
 	 * @param tokenizer a {@link net.sf.classifier4J.ITokenizer}
 	 * @param swp a {@link net.sf.classifier4J.IStopWordProvider}
 	 */
-	public BayesPartitionClassifier(PersistantWordsDataSource wd, ITokenizer tokenizer, IStopWordProvider swp) {
-		if (wd == null) {
+	public BayesPartitionClassifier(IPartitionedWordsDataSource wd, ITokenizer tokenizer, IStopWordProvider swp) {
+		this(wd != null ? new ModelHandle(wd) : null, tokenizer, swp);
+	}
+
+	/**
+	 * Constructor for BayesianClassifier that specifies a swappable model & tokenizer
+	 * 
+	 * @param model a {@link ModelHandle}, typically one watched by the
+	 *            {@link ModelRegistry}
+	 * @param tokenizer a {@link net.sf.classifier4J.ITokenizer}
+	 */
+	public BayesPartitionClassifier(ModelHandle model, ITokenizer tokenizer) {
+		this(model, tokenizer, new DefaultStopWordsProvider());
+	}
+
+	/**
+	 * Constructor for BayesianClassifier that specifies a swappable model, tokenizer and
+	 * stop words provider
+	 * 
+	 * @param model a {@link ModelHandle}
+	 * @param tokenizer a {@link net.sf.classifier4J.ITokenizer}
+	 * @param swp a {@link net.sf.classifier4J.IStopWordProvider}
+	 */
+	public BayesPartitionClassifier(ModelHandle model, ITokenizer tokenizer, IStopWordProvider swp) {
+		if (model == null) {
 			throw new IllegalArgumentException("IWordsDataSource can't be null");
 		}
-		this.wordsData = wd;
+		this.model = model;
 
 		if (tokenizer == null) {
 			throw new IllegalArgumentException("ITokenizer can't be null");
@@ -244,19 +292,236 @@ public class BayesPartitionClassifier {
 	 */
 	protected String classify(String category, String words[]) throws WordsDataSourceException {
 
-		PartitionProbabilities results = new PartitionProbabilities(category);
-		String[] publicPartitions = wordsData.getPartitionList(category, SPACE_TOTALS);
-		if (publicPartitions != null) {
-			for (int i = 0; i < publicPartitions.length; i++) {
-				String partition = publicPartitions[i];
-				if (debug) Log.debug(this, "classify() - Partition: " + partition);
-				double score = calculatePartialProbability(category, partition, words);
-				BigDecimal scoreBD = new BigDecimal(score).setScale(16, BigDecimal.ROUND_HALF_UP);
-				if (debug) Log.debug(this, Util.leftAlign(partition + ":", 14) + scoreBD);
-				results.setScore(partition, score); // normaliseSignificance(score));
+		IPartitionedWordsDataSource wordsData = model.acquire();
+		try {
+			PartitionProbabilities results = new PartitionProbabilities(category);
+			String[] publicPartitions = wordsData.getPartitionList(category, SPACE_TOTALS);
+			if (publicPartitions != null) {
+				// every term in every partition, in one call to the data source
+				WordProbabilityPT[][] wps = wordsData.getWordProbabilities(category, publicPartitions,
+						collectTerms(words));
+				double spaceWordsCount = wordsData.getMatchWordCount(category);
+				for (int i = 0; i < publicPartitions.length; i++) {
+					String partition = publicPartitions[i];
+					if (debug) Log.debug(this, "classify() - Partition: " + partition);
+					double score = partialProbability(category, partition, wps[i],
+							words != null ? words.length : 0, spaceWordsCount,
+							wordsData.getMatchWordCount(category, partition));
+					BigDecimal scoreBD = new BigDecimal(score).setScale(16, BigDecimal.ROUND_HALF_UP);
+					if (debug) Log.debug(this, Util.leftAlign(partition + ":", 14) + scoreBD);
+					results.setScore(partition, score); // normaliseSignificance(score));
+				}
+			}
+			return results.maxScorePartition();
+		} finally {
+			model.release(wordsData);
+		}
+	}
+
+	// ///////////////////////////////////////////////////////////////////////////
+	/**
+	 * Classify each of the given strings against the given category. Messages are
+	 * tokenized and scored in parallel on the common fork/join pool. Where partitions tie
+	 * for the best score, the first in the partition order of the result is taken; this
+	 * may differ from the partition {@link #classify(String, String)} takes.
+	 * 
+	 * @param category the category to classify against.
+	 * @param inputs the strings to classify
+	 * @return the best matching partition index and margin for each string
+	 */
+	public BatchResult classifyBatch(String category, List<String> inputs) throws WordsDataSourceException {
+		return classifyBatch(category, inputs, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Classify each of the given strings against the given category, using the given
+	 * fork/join pool.
+	 * 
+	 * @param category the category to classify against.
+	 * @param inputs the strings to classify
+	 * @param pool the pool to run the classification on
+	 * @return the best matching partition index and margin for each string
+	 */
+	public BatchResult classifyBatch(String category, List<String> inputs, ForkJoinPool pool)
+			throws WordsDataSourceException {
+		if (inputs == null) {
+			throw new IllegalArgumentException("inputs cannot be null");
+		}
+		if (inputs.contains(null)) {
+			throw new IllegalArgumentException("inputs cannot contain null");
+		}
+		return classifyBatch(category, inputs, new String[inputs.size()][], pool);
+	}
+
+	/**
+	 * Classify each of the given, already tokenized, messages against the given category.
+	 * The messages are not changed. Ties resolve as for {@link #classifyBatch(String, List)}.
+	 * 
+	 * @param category the category to classify against.
+	 * @param messages the word sets to classify
+	 * @return the best matching partition index and margin for each message
+	 */
+	public BatchResult classifyBatch(String category, String[][] messages) throws WordsDataSourceException {
+		return classifyBatch(category, messages, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Classify each of the given, already tokenized, messages against the given category,
+	 * using the given fork/join pool.
+	 * 
+	 * @param category the category to classify against.
+	 * @param messages the word sets to classify
+	 * @param pool the pool to run the classification on
+	 * @return the best matching partition index and margin for each message
+	 */
+	public BatchResult classifyBatch(String category, String[][] messages, ForkJoinPool pool)
+			throws WordsDataSourceException {
+		if (messages == null) {
+			throw new IllegalArgumentException("messages cannot be null");
+		}
+		for (String[] words : messages) {
+			if (words == null) {
+				throw new IllegalArgumentException("messages cannot contain null");
+			}
+		}
+		return classifyBatch(category, null, messages, pool);
+	}
+
+	/*
+	 * The model snapshot, partition list and partition word counts are fetched once for
+	 * the whole batch. Messages are tokenized from the input strings, if given, into the
+	 * message array, which is then private to the batch.
+	 */
+	private BatchResult classifyBatch(String category, List<String> inputs, String[][] messages, ForkJoinPool pool)
+			throws WordsDataSourceException {
+		if (category == null) {
+			throw new IllegalArgumentException("category cannot be null");
+		}
+		checkPartitionsSupported(category);
+
+		IPartitionedWordsDataSource wordsData = model.acquire();
+		try {
+			String[] partitions = wordsData.getPartitionList(category, SPACE_TOTALS);
+			BatchResult result = new BatchResult(partitions, messages.length);
+			if (messages.length == 0) return result;
+
+			double[] partitionWordsCounts = new double[result.getPartitions().length];
+			for (int p = 0; p < partitionWordsCounts.length; p++) {
+				partitionWordsCounts[p] = wordsData.getMatchWordCount(category, partitions[p]);
+			}
+			BatchContext ctx = new BatchContext(wordsData, category, result.getPartitions(),
+					wordsData.getMatchWordCount(category), partitionWordsCounts, inputs, messages, result);
+			try {
+				BatchTask task = new BatchTask(ctx, 0, messages.length);
+				if (ForkJoinTask.getPool() == pool) {
+					task.invoke(); // already running in the pool, e.g., a page-parallel task
+				} else {
+					pool.invoke(task);
+				}
+			} catch (RuntimeException e) {
+				// the pool may rewrap the task's exception; surface the data source failure
+				for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+					if (t instanceof WordsDataSourceException) throw (WordsDataSourceException) t;
+				}
+				throw e;
 			}
+			return result;
+		} finally {
+			model.release(wordsData);
+		}
+	}
+
+	/* Per-batch values shared, read-only, by the tasks of one batch. */
+	private static class BatchContext {
+
+		final IPartitionedWordsDataSource wordsData;
+		final String category;
+		final String[] partitions;
+		final double spaceWordsCount;
+		final double[] partitionWordsCounts;
+		final List<String> inputs;
+		final String[][] messages;
+		final BatchResult result;
+
+		BatchContext(IPartitionedWordsDataSource wordsData, String category, String[] partitions,
+				double spaceWordsCount, double[] partitionWordsCounts, List<String> inputs, String[][] messages,
+				BatchResult result) {
+			this.wordsData = wordsData;
+			this.category = category;
+			this.partitions = partitions;
+			this.spaceWordsCount = spaceWordsCount;
+			this.partitionWordsCounts = partitionWordsCounts;
+			this.inputs = inputs;
+			this.messages = messages;
+			this.result = result;
+		}
+	}
+
+	/* Splits a batch down to runs of BATCH_GRAIN messages, each scored sequentially. */
+	private class BatchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final BatchContext ctx;
+		private final int lo;
+		private final int hi;
+
+		BatchTask(BatchContext ctx, int lo, int hi) {
+			this.ctx = ctx;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > BATCH_GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new BatchTask(ctx, lo, mid), new BatchTask(ctx, mid, hi));
+				return;
+			}
+			try {
+				// scratch buffer reused across the run
+				double[] scores = new double[ctx.partitions.length];
+				for (int m = lo; m < hi; m++) {
+					String[] words = ctx.messages[m];
+					if (words == null) {
+						words = tokenizer.tokenize(ctx.inputs.get(m));
+						ctx.messages[m] = words;
+					}
+					scoreMessage(ctx, words, scores);
+
+					int best = -1;
+					double bestScore = 0;
+					double nextScore = 0;
+					for (int p = 0; p < scores.length; p++) {
+						if (scores[p] > bestScore) {
+							nextScore = bestScore;
+							bestScore = scores[p];
+							best = p;
+						} else if (scores[p] > nextScore) {
+							nextScore = scores[p];
+						}
+					}
+					ctx.result.best[m] = best;
+					ctx.result.margins[m] = bestScore - nextScore;
+				}
+			} catch (WordsDataSourceException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/*
+	 * Scores one message against every partition of the batch; equivalent to
+	 * calculatePartialProbability applied to each partition in turn.
+	 */
+	private void scoreMessage(BatchContext ctx, String[] words, double[] scores) throws WordsDataSourceException {
+		WordProbabilityPT[][] wps = ctx.wordsData.getWordProbabilities(ctx.category, ctx.partitions,
+				collectTerms(words));
+		for (int p = 0; p < ctx.partitions.length; p++) {
+			scores[p] = partialProbability(ctx.category, ctx.partitions[p], wps[p], words.length,
+					ctx.spaceWordsCount, ctx.partitionWordsCounts[p]);
 		}
-		return results.maxScorePartition();
 	}
 
 	// ///////////////////////////////////////////////////////////////////////////
@@ -275,9 +540,11 @@ public class BayesPartitionClassifier {
 	}
 
 	/**
-	 * Accumulate word term matches against the given category and partition. Also
-	 * accumuates a sample space total count in the special reserved partition
-	 * "SPACE_TOTALS".
+	 * Accumulate word term matches against the given category and partition. The sample
+	 * space totals of the reserved label "SPACE_TOTALS" are derived by the data source
+	 * from the partitions, so need no matches of their own. May be called from any number
+	 * of threads at once where the data source supports it, as a
+	 * {@link PersistantWordsDataSource} training concurrently does.
 	 * 
 	 * @param category the given category to annotate
 	 * @param partition the given cagetory to annotate
@@ -286,11 +553,11 @@ public class BayesPartitionClassifier {
 	 */
 	protected void teachMatch(String category, String partition, String words[]) throws WordsDataSourceException {
 
+		IPartitionedWordsDataSource wordsData = model.current();
 		for (int i = 0; i < words.length; i++) {
 			if (isClassifiableWord(words[i])) {
 				addTrainingCount(category, partition);
 				wordsData.addMatch(category, partition, transformWord(words[i]));
-				wordsData.addMatch(category, SPACE_TOTALS, transformWord(words[i]));
 			}
 		}
 	}
@@ -299,27 +566,30 @@ public class BayesPartitionClassifier {
 	 * Initializes the classifier to begin a training session.
 	 */
 	public void initTrainingCount() {
-		categoryCounter = new HashMap<String, HashMap<String, Integer>>();
+		categoryCounter = new ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>();
 	}
 
 	/**
+	 * Counts one training word of the given partition. Safe to call from any thread.
+	 * 
 	 * @param category
 	 * @param partition
 	 */
 	private void addTrainingCount(String category, String partition) {
-		if (categoryCounter.containsKey(category)) {
-			HashMap<String, Integer> partitionCounter = categoryCounter.get(category);
-			if (partitionCounter.containsKey(partition)) {
-				int cnt = partitionCounter.get(partition).intValue();
-				partitionCounter.put(partition, new Integer(cnt + 1));
-			} else {
-				partitionCounter.put(partition, new Integer(1));
-			}
-		} else {
-			HashMap<String, Integer> partitionCounter = new HashMap<String, Integer>();
-			partitionCounter.put(partition, new Integer(1));
-			categoryCounter.put(category, partitionCounter);
+		ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> counter = categoryCounter;
+		ConcurrentHashMap<String, LongAdder> partitionCounter = counter.get(category);
+		if (partitionCounter == null) {
+			partitionCounter = new ConcurrentHashMap<String, LongAdder>();
+			ConcurrentHashMap<String, LongAdder> prior = counter.putIfAbsent(category, partitionCounter);
+			if (prior != null) partitionCounter = prior;
+		}
+		LongAdder cnt = partitionCounter.get(partition);
+		if (cnt == null) {
+			cnt = new LongAdder();
+			LongAdder prior = partitionCounter.putIfAbsent(partition, cnt);
+			if (prior != null) cnt = prior;
 		}
+		cnt.increment();
 	}
 
 	/**
@@ -329,13 +599,11 @@ public class BayesPartitionClassifier {
 	 * @param partition
 	 * @return
 	 */
-	@SuppressWarnings("rawtypes")
 	private int getTrainingCount(String category, String partition) {
-		if (categoryCounter.containsKey(category)) {
-			HashMap partitionCounter = categoryCounter.get(category);
-			if (partitionCounter.containsKey(partition)) {
-				return ((Integer) partitionCounter.get(partition)).intValue();
-			}
+		ConcurrentHashMap<String, LongAdder> partitionCounter = categoryCounter.get(category);
+		if (partitionCounter != null) {
+			LongAdder cnt = partitionCounter.get(partition);
+			if (cnt != null) return cnt.intValue();
 		}
 		return 0;
 	}
@@ -349,7 +617,7 @@ public class BayesPartitionClassifier {
 	 */
 	private int getTrainingCount(String category) throws WordsDataSourceException {
 		int pCntTotal = 0;
-		String[] partitions = wordsData.getPartitionList(category, SPACE_TOTALS);
+		String[] partitions = model.current().getPartitionList(category, SPACE_TOTALS);
 		for (int i = 0; i < partitions.length; i++) {
 			pCntTotal += getTrainingCount(category, partitions[i]);
 		}
@@ -358,14 +626,15 @@ public class BayesPartitionClassifier {
 
 	/**
 	 * Updates the word term probabilities in all of the partitions within the given
-	 * category. Relies on a special reserved partition "SPACE_TOTALS" to contain sample
-	 * space total occurrence counts.
+	 * category. Relies on the data source to derive, under the reserved label
+	 * "SPACE_TOTALS", the sample space total occurrence counts.
 	 * 
 	 * @param category
 	 * @throws WordsDataSourceException
 	 */
 	public void updateWordProbabilites(String category) throws WordsDataSourceException {
 
+		IPartitionedWordsDataSource wordsData = model.current();
 		int pCntTotal = getTrainingCount(category);
 		String[] partitions = wordsData.getPartitionList(category, SPACE_TOTALS);
 		for (int i = 0; i < partitions.length; i++) {
@@ -389,41 +658,65 @@ public class BayesPartitionClassifier {
 	/* public for testing */
 	public double calculatePartialProbability(String category, String partition, String[] words)
 			throws WordsDataSourceException {
+		IPartitionedWordsDataSource wordsData = model.acquire();
+		try {
+			return calculatePartialProbability(wordsData, category, partition, words);
+		} finally {
+			model.release(wordsData);
+		}
+	}
 
-		WordProbabilityPT[] wps = collectWordProbabilities(category, partition, words);
+	private double calculatePartialProbability(IPartitionedWordsDataSource wordsData, String category,
+			String partition, String[] words) throws WordsDataSourceException {
 
-		if (wps == null || wps.length == 0) {
-			return IClassifier.NEUTRAL_PROBABILITY;
-		} else {
-			// need to calculate P(Eo|Bi) * P(Bi) as numerator
-			// and P(Eo|Bi) + [[1 - P(E|Bi)] * [1 - P(Bi)]] as denominator
-
-			double spaceWordsCount = wordsData.getMatchWordCount(category);
-			double partitionWordsCount = wordsData.getMatchWordCount(category, partition);
-			if (debug) Log.debug(this, "Partial probability over: " + category + ":" + partition + " = "
-					+ partitionWordsCount + "/" + spaceWordsCount);
-
-			double pBi = partitionWordsCount / spaceWordsCount;
-			double negPBi = 1 - pBi;
-			double pEoBi = MAX_PROBABILITY;
-			double negPEoBi = MAX_PROBABILITY;
-			for (int i = 0; i < wps.length; i++) {
+		WordProbabilityPT[] wps = wordsData.getWordProbabilities(category, new String[] { partition },
+				collectTerms(words))[0];
+		if (wps.length == 0) return IClassifier.NEUTRAL_PROBABILITY;
+		return partialProbability(category, partition, wps, words.length, wordsData.getMatchWordCount(category),
+				wordsData.getMatchWordCount(category, partition));
+	}
+
+	/*
+	 * Determines the Bayesian score of a word set from the probabilities of its terms in
+	 * one partition, given as null where a term does not exist in the partition. The
+	 * sample space counts each matched word twice, once in its partition and once in the
+	 * category totals, as when the totals were stored in a partition of their own; the
+	 * scores depend on the space so taken.
+	 */
+	private double partialProbability(String category, String partition, WordProbabilityPT[] wps, int wordCount,
+			double spaceWordsCount, double partitionWordsCount) {
+
+		// need to calculate P(Eo|Bi) * P(Bi) as numerator
+		// and P(Eo|Bi) + [[1 - P(E|Bi)] * [1 - P(Bi)]] as denominator
+		double pEoBi = MAX_PROBABILITY;
+		double negPEoBi = MAX_PROBABILITY;
+		int found = 0;
+		for (int i = 0; i < wps.length; i++) {
+			if (wps[i] != null) {
 				double wordProbability = wps[i].getProbability();
 				pEoBi *= wordProbability;
 				negPEoBi *= (1 - wordProbability);
-				// report(category, partition, wps[i].getWord(), pBi, pEoBi,
-				// wps[i].getProbability());
-			}
-			double minProbability = (0.001 / spaceWordsCount);
-			for (int j = 0; j < words.length - wps.length; j++) {
-				pEoBi *= minProbability;
-				negPEoBi *= (1 - minProbability);
+				found++;
 			}
-			double numerator = (pEoBi * pBi);
-			double denominator = pEoBi + (negPEoBi * negPBi);
-			if (debug) Log.debug(this, "Bayes: " + category + ":" + partition + "> " + numerator + "/" + denominator);
-			return numerator / denominator;
 		}
+		if (found == 0) {
+			return IClassifier.NEUTRAL_PROBABILITY;
+		}
+		double spaceCount = 2 * spaceWordsCount;
+		if (debug) Log.debug(this, "Partial probability over: " + category + ":" + partition + " = "
+				+ partitionWordsCount + "/" + spaceCount);
+
+		double pBi = partitionWordsCount / spaceCount;
+		double negPBi = 1 - pBi;
+		double minProbability = (0.001 / spaceCount);
+		for (int j = 0; j < wordCount - found; j++) {
+			pEoBi *= minProbability;
+			negPEoBi *= (1 - minProbability);
+		}
+		double numerator = (pEoBi * pBi);
+		double denominator = pEoBi + (negPEoBi * negPBi);
+		if (debug) Log.debug(this, "Bayes: " + category + ":" + partition + "> " + numerator + "/" + denominator);
+		return numerator / denominator;
 	}
 
 	@SuppressWarnings("unused")
@@ -437,38 +730,29 @@ public class BayesPartitionClassifier {
 	}
 
 	/**
-	 * Produces a word probability list continaing only those words of the given word list
-	 * that also exist as prior samples in the given partition.
+	 * Produces the lookup terms of the given word list: those words that are classifiable,
+	 * transformed.
 	 * 
-	 * @param category the category to check
-	 * @param partition the partition to check
 	 * @param words the word set to match to a partition
-	 * @return array of the existant words term objects
-	 * @throws WordsDataSourceException
+	 * @return array of the terms, in word order
 	 */
-	private WordProbabilityPT[] collectWordProbabilities(String category, String partition, String[] words)
-			throws WordsDataSourceException {
-
+	private String[] collectTerms(String[] words) {
 		if (words == null) {
-			return new WordProbabilityPT[0];
-		} else {
-			List<WordProbabilityPT> wps = new ArrayList<WordProbabilityPT>();
-			for (int i = 0; i < words.length; i++) {
-				if (isClassifiableWord(words[i])) {
-					WordProbabilityPT wp = wordsData.getWordProbability(category, partition, transformWord(words[i]));
-					if (wp != null) {
-						wps.add(wp);
-					}
-				}
+			return new String[0];
+		}
+		List<String> terms = new ArrayList<String>(words.length);
+		for (int i = 0; i < words.length; i++) {
+			if (isClassifiableWord(words[i])) {
+				terms.add(transformWord(words[i]));
 			}
-			return wps.toArray(new WordProbabilityPT[wps.size()]);
 		}
+		return terms.toArray(new String[terms.size()]);
 	}
 
 	private boolean isClassifiableWord(String word) {
 		if (word == null || "".equals(word) || stopWordProvider.isStopWord(word)) {
 			return false;
-		} else if (word.matches("^\\d+.*") || word.matches(".+\\d{2}.*")) {
+		} else if (leadingDigits.matcher(word).matches() || embeddedDigits.matcher(word).matches()) {
 			return false;
 		} else {
 			return true;
@@ -508,7 +792,7 @@ public class BayesPartitionClassifier {
 
 	@SuppressWarnings("cast")
 	private void checkPartitionsSupported(String category) {
-		if (!(wordsData instanceof IPartitionedWordsDataSource)) {
+		if (!(model.current() instanceof IPartitionedWordsDataSource)) {
 			throw new IllegalArgumentException("The Data Source does not support a partitioned sample space.");
 		}
 	}
@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes section models in a compact, versioned binary format. All values are
+ * big-endian.
+ * 
+ * <pre>
+ * header:    magic "NBYM", u16 version, u16 flags, u64 body length, u32 CRC32 of the body
+ * body:      u32 string count, then each string as u32 byte length and UTF-8 bytes
+ *            u32 category count, then per category:
+ *              u32 name id, u32 partition count, then per partition:
+ *                u32 name id, u32 word count, then the word columns:
+ *                  u32 word ids[count]
+ *                  varint matching counts[count]
+ *                  varint non-matching counts[count]
+ *                  varint training partition counts[count]
+ *                  varint training category counts[count]
+ *                  f64 probabilities[count]
+ * </pre>
+ * 
+ * Every category, partition and word name is stored once in the string table and
+ * referred to by its index. Counts are zig-zag encoded variable length integers, so
+ * that the undefined count of -1 remains a single byte.
+ * <p>
+ * Readers sniff the leading bytes of a file: a gzip stream is unwrapped first, and a Java
+ * serialized model, as written by earlier releases, is read as such. Version 2 models,
+ * in the {@link IndexedModelFormat}, share this header and are read onto the heap here.
+ * <p>
+ * Models are saved in version 1. It is near a third the size of version 2 uncompressed,
+ * and half gzip compressed, as its counts are variable length and each name is stored
+ * once. Only a model file named with the {@link IndexedModelFormat#SUFFIX}, to be
+ * mapped, is saved in version 2.
+ *
+ * @author Gbr
+ */
+public class BinaryModelFormat {
+
+	public static final byte[] MAGIC = { 'N', 'B', 'Y', 'M' };
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 20;
+
+	private static final int GZIP_MAGIC = 0x1f8b;
+	private static final int JAVA_MAGIC = 0xaced;
+
+	private BinaryModelFormat() {}
+
+	/**
+	 * Writes the model to the given file, gzip compressed if the file name ends in
+	 * <code>.gz</code>.
+	 */
+	public static void write(File f, HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data)
+			throws IOException {
+		writeFile(f, VERSION, encode(data));
+	}
+
+	/*
+	 * Writes the header and the given body, gzip compressed if the file name ends in
+	 * .gz, and forces the file to disk.
+	 */
+	static void writeFile(File f, int version, byte[] body) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(body);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC).putShort((short) version).putShort((short) 0).putLong(body.length)
+				.putInt((int) crc.getValue());
+		header.flip();
+
+		if (f.getName().endsWith(".gz")) {
+			FileOutputStream fos = new FileOutputStream(f);
+			GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(fos), 65536);
+			try {
+				out.write(header.array());
+				out.write(body);
+				out.finish();
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				out.close();
+			}
+			return;
+		}
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer[] buffers = { header, ByteBuffer.wrap(body) };
+			while (buffers[1].hasRemaining()) {
+				channel.write(buffers);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads a model from the given file, in this format or as a Java serialized model,
+	 * either possibly gzip compressed.
+	 */
+	@SuppressWarnings("unchecked")
+	public static HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> read(File f)
+			throws IOException, ClassNotFoundException {
+		InputStream in = new BufferedInputStream(new FileInputStream(f), 65536);
+		try {
+			boolean gzip = peek(in) == GZIP_MAGIC;
+			if (gzip) in = new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+			if (peek(in) == JAVA_MAGIC) {
+				return (HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>) new ObjectInputStream(
+						in).readObject();
+			}
+			if (gzip) return decode(readAll(in));
+		} finally {
+			in.close();
+		}
+
+		// uncompressed: read through the channel in a single buffer
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("Model file too large: " + f);
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			while (buf.hasRemaining()) {
+				if (channel.read(buf) < 0) throw new IOException("Truncated model file: " + f);
+			}
+			buf.flip();
+			return decode(buf);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the format version of the given, uncompressed, binary model file, or -1 if
+	 * the file is not a binary model.
+	 */
+	public static int readVersion(File f) throws IOException {
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] lead = new byte[MAGIC.length + 2];
+			int n = 0;
+			while (n < lead.length) {
+				int r = in.read(lead, n, lead.length - n);
+				if (r < 0) return -1;
+				n += r;
+			}
+			for (int idx = 0; idx < MAGIC.length; idx++) {
+				if (lead[idx] != MAGIC[idx]) return -1;
+			}
+			return ((lead[4] & 0xff) << 8) | (lead[5] & 0xff);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the body checksum recorded in the header of the given binary model file,
+	 * possibly gzip compressed. The checksum identifies the content of the model.
+	 *
+	 * @throws IOException if the file is not a binary model
+	 */
+	public static int readChecksum(File f) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(f), HEADER_SIZE);
+		try {
+			if (peek(in) == GZIP_MAGIC) in = new GZIPInputStream(in);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				int r = in.read(header.array(), header.position(), header.remaining());
+				if (r < 0) throw new IOException("Not a binary model: too short: " + f);
+				header.position(header.position() + r);
+			}
+			header.flip();
+			for (byte b : MAGIC) {
+				if (header.get() != b) throw new IOException("Not a binary model: " + f);
+			}
+			return header.getInt(HEADER_SIZE - 4);
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Validates the header and checksum of a model held in the buffer, and returns the
+	 * body, positioned at its start.
+	 */
+	static ByteBuffer checkHeader(ByteBuffer buf, int maxVersion) throws IOException {
+		return checkHeader(buf, maxVersion, true);
+	}
+
+	/*
+	 * As above, optionally skipping the checksum, which reads the whole of the body.
+	 */
+	static ByteBuffer checkHeader(ByteBuffer buf, int maxVersion, boolean verify) throws IOException {
+		if (buf.remaining() < HEADER_SIZE) throw new IOException("Not a binary model: too short");
+		for (byte b : MAGIC) {
+			if (buf.get() != b) throw new IOException("Not a binary model: bad magic number");
+		}
+		int version = buf.getShort() & 0xffff;
+		if (version < 1 || version > maxVersion) throw new IOException("Unsupported model version " + version);
+		buf.getShort(); // flags
+		long length = buf.getLong();
+		int expected = buf.getInt();
+		if (length != buf.remaining()) throw new IOException("Model body length mismatch");
+
+		ByteBuffer body = buf.slice();
+		if (verify) {
+			CRC32 crc = new CRC32();
+			crc.update(body.duplicate());
+			if ((int) crc.getValue() != expected) throw new IOException("Model checksum mismatch");
+		}
+		return body;
+	}
+
+	private static HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> decode(ByteBuffer buf)
+			throws IOException {
+		if (buf.remaining() >= HEADER_SIZE
+				&& (buf.getShort(buf.position() + MAGIC.length) & 0xffff) == IndexedModelFormat.VERSION) {
+			return IndexedModelFormat.decode(checkHeader(buf, IndexedModelFormat.VERSION));
+		}
+		ByteBuffer body = checkHeader(buf, VERSION);
+		String[] strings = readStrings(body);
+
+		int categoryCount = body.getInt();
+		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> categories = new HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>(
+				capacity(categoryCount));
+		for (int c = 0; c < categoryCount; c++) {
+			String category = strings[body.getInt()];
+			int partitionCount = body.getInt();
+			HashMap<String, HashMap<String, WordProbabilityPT>> partitions = new HashMap<String, HashMap<String, WordProbabilityPT>>(
+					capacity(partitionCount));
+			for (int p = 0; p < partitionCount; p++) {
+				String partition = strings[body.getInt()];
+				partitions.put(partition, readWords(body, strings));
+			}
+			categories.put(category, partitions);
+		}
+		return categories;
+	}
+
+	private static HashMap<String, WordProbabilityPT> readWords(ByteBuffer body, String[] strings) {
+		int count = body.getInt();
+		int[] ids = new int[count];
+		for (int w = 0; w < count; w++) {
+			ids[w] = body.getInt();
+		}
+		long[] matching = readVarLongs(body, count);
+		long[] nonMatching = readVarLongs(body, count);
+		long[] trainingPartition = readVarLongs(body, count);
+		long[] trainingCategory = readVarLongs(body, count);
+
+		HashMap<String, WordProbabilityPT> words = new HashMap<String, WordProbabilityPT>(capacity(count));
+		for (int w = 0; w < count; w++) {
+			String word = strings[ids[w]];
+			WordProbabilityPT wp = new WordProbabilityPT(word, matching[w], nonMatching[w]);
+			wp.setTrainingPartition(trainingPartition[w]);
+			wp.setTrainingCategory(trainingCategory[w]);
+			wp.setProbability(body.getDouble());
+			words.put(word, wp);
+		}
+		return words;
+	}
+
+	/*
+	 * Encodes the model body. The string table is assigned in order of first use:
+	 * categories, partitions and words alike.
+	 */
+	private static byte[] encode(HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data)
+			throws IOException {
+		Map<String, Integer> ids = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, HashMap<String, HashMap<String, WordProbabilityPT>>> category : data.entrySet()) {
+			intern(ids, category.getKey());
+			for (Map.Entry<String, HashMap<String, WordProbabilityPT>> partition : category.getValue().entrySet()) {
+				intern(ids, partition.getKey());
+				for (String word : partition.getValue().keySet()) {
+					intern(ids, word);
+				}
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes, 65536));
+		writeStrings(out, new ArrayList<String>(ids.keySet()));
+
+		out.writeInt(data.size());
+		for (Map.Entry<String, HashMap<String, HashMap<String, WordProbabilityPT>>> category : data.entrySet()) {
+			out.writeInt(ids.get(category.getKey()));
+			out.writeInt(category.getValue().size());
+			for (Map.Entry<String, HashMap<String, WordProbabilityPT>> partition : category.getValue().entrySet()) {
+				out.writeInt(ids.get(partition.getKey()));
+				writeWords(out, ids, new ArrayList<WordProbabilityPT>(partition.getValue().values()));
+			}
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeWords(DataOutputStream out, Map<String, Integer> ids, List<WordProbabilityPT> words)
+			throws IOException {
+		out.writeInt(words.size());
+		for (WordProbabilityPT wp : words) {
+			out.writeInt(ids.get(wp.getWord()));
+		}
+		for (WordProbabilityPT wp : words) {
+			writeVarLong(out, wp.getMatchingCount());
+		}
+		for (WordProbabilityPT wp : words) {
+			writeVarLong(out, wp.getNonMatchingCount());
+		}
+		for (WordProbabilityPT wp : words) {
+			writeVarLong(out, wp.getTrainingPartition());
+		}
+		for (WordProbabilityPT wp : words) {
+			writeVarLong(out, wp.getTrainingCategory());
+		}
+		for (WordProbabilityPT wp : words) {
+			out.writeDouble(wp.getProbability());
+		}
+	}
+
+	static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings) {
+			byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(utf.length);
+			out.write(utf);
+		}
+	}
+
+	static String[] readStrings(ByteBuffer body) {
+		int count = body.getInt();
+		String[] strings = new String[count];
+		for (int idx = 0; idx < count; idx++) {
+			strings[idx] = readString(body, body.getInt());
+		}
+		return strings;
+	}
+
+	/* Reads a UTF-8 string of the given byte length, from a heap or direct buffer. */
+	static String readString(ByteBuffer buf, int len) {
+		String s;
+		if (buf.hasArray()) {
+			s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+			buf.position(buf.position() + len);
+		} else {
+			byte[] utf = new byte[len];
+			buf.get(utf);
+			s = new String(utf, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		long v = (value << 1) ^ (value >> 63); // zig-zag
+		while ((v & ~0x7fL) != 0) {
+			out.writeByte((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	static long readVarLong(ByteBuffer buf) {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf.get();
+			v |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static long[] readVarLongs(ByteBuffer buf, int count) {
+		long[] values = new long[count];
+		for (int idx = 0; idx < count; idx++) {
+			values[idx] = readVarLong(buf);
+		}
+		return values;
+	}
+
+	private static void intern(Map<String, Integer> ids, String s) {
+		if (!ids.containsKey(s)) ids.put(s, ids.size());
+	}
+
+	static int capacity(int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+
+	/* Returns the next two bytes of the stream as an unsigned short, without consuming them. */
+	private static int peek(InputStream in) throws IOException {
+		in.mark(2);
+		int b1 = in.read();
+		int b2 = in.read();
+		in.reset();
+		return b1 < 0 || b2 < 0 ? -1 : (b1 << 8) | b2;
+	}
+
+	private static ByteBuffer readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[65536];
+		for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+			bytes.write(chunk, 0, n);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+}
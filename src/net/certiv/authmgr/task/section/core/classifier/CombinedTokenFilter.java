@@ -18,10 +18,21 @@ import java.util.Collections;
 import net.sf.classifier4J.DefaultTokenizer;
 import net.sf.classifier4J.PorterStemmer;
 
+/**
+ * Tokenizer that stems each word and drops stop words and duplicates. Safe for use by
+ * concurrent callers: the stop word list is read-only and each thread stems with its own
+ * stemmer.
+ */
 public class CombinedTokenFilter extends DefaultTokenizer {
 
-	StopWordFileProvider swfp;
-	PorterStemmer stemmer;
+	final StopWordFileProvider swfp;
+	final ThreadLocal<PorterStemmer> stemmer = new ThreadLocal<PorterStemmer>() {
+
+		@Override
+		protected PorterStemmer initialValue() {
+			return new PorterStemmer();
+		}
+	};
 
 	/**
 	 * @throws IOException
@@ -47,7 +58,6 @@ public class CombinedTokenFilter extends DefaultTokenizer {
 	public CombinedTokenFilter(int tokenizerConfig, String filename) throws IOException {
 		super(tokenizerConfig);
 		swfp = new StopWordFileProvider(filename);
-		stemmer = new PorterStemmer();
 	}
 
 	public String[] tokenize(String input) {
@@ -85,6 +95,7 @@ public class CombinedTokenFilter extends DefaultTokenizer {
 	 * @return the stemmed word.
 	 */
 	private String stemWord(String word) {
+		PorterStemmer stemmer = this.stemmer.get();
 		char[] ca = word.toCharArray();
 		stemmer.add(ca, ca.length);
 		stemmer.stem();
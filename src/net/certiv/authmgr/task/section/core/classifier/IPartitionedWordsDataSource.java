@@ -37,7 +37,24 @@ public interface IPartitionedWordsDataSource {
 			throws WordsDataSourceException;
 
 	/**
-	 * Add a matching word to the data source
+	 * Looks up every term of a message in each of the given partitions in a single call,
+	 * so that the data source may amortize its lookup cost across the whole message.
+	 * 
+	 * @param category the category to check against
+	 * @param partitions the partitions to check against
+	 * @param terms the classifiable terms of the message, as transformed for lookup
+	 * @return the word probabilities by partition and term, in the order given; null
+	 *         where a term does not exist in a partition
+	 * 
+	 * @throws WordsDataSourceException If there is a fatal problem. For example, the
+	 *             database is unavailable
+	 */
+	public WordProbabilityPT[][] getWordProbabilities(String category, String[] partitions, String[] terms)
+			throws WordsDataSourceException;
+
+	/**
+	 * Add a matching word to the data source. The word term totals of the category are
+	 * derived from its partitions, so a match to the reserved totals partition is ignored.
 	 * 
 	 * @param category the category add the match to
 	 * @param partition the partition to add the match to
@@ -48,4 +65,54 @@ public interface IPartitionedWordsDataSource {
 	 */
 	public void addMatch(String category, String Partition, String word) throws WordsDataSourceException;
 
+	/**
+	 * After training a partition, update the word probability factors for each of the
+	 * words in the partition.
+	 * 
+	 * @param category the category to update
+	 * @param partition the label of the partition to update
+	 * @param totals the reserved label of the word term totals for the category; the
+	 *            totals are derived from the partitions rather than stored.
+	 * @param cnt the training count of the partition
+	 * @param cntTotal the training count of the category
+	 * 
+	 * @throws WordsDataSourceException If there is a fatal problem. For example, the data
+	 *             source is read-only
+	 */
+	public void updateWordProbabilities(String category, String partition, String totals, int cnt, int cntTotal)
+			throws WordsDataSourceException;
+
+	/**
+	 * @param category the category to check
+	 * @return the labels of all partitions stored in the category; null if the category
+	 *         does not exist
+	 */
+	public String[] getPartitionList(String category) throws WordsDataSourceException;
+
+	/**
+	 * @param category the category to check
+	 * @param nonPublics a space separated series of reserved partition labels
+	 * @return the labels of the public partitions in the category
+	 */
+	public String[] getPartitionList(String category, String nonPublics) throws WordsDataSourceException;
+
+	/**
+	 * @param category the category to total
+	 * @return the matched, not unique, word count summed over every partition of the
+	 *         category
+	 */
+	public int getMatchWordCount(String category) throws WordsDataSourceException;
+
+	/**
+	 * @param category the category to search
+	 * @param partition the partition to total
+	 * @return the matched, not unique, word count of the partition
+	 */
+	public int getMatchWordCount(String category, String partition) throws WordsDataSourceException;
+
+	/**
+	 * Returns a rough estimate, in bytes, of the heap occupied by the data source.
+	 */
+	public long estimateSize();
+
 }
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Version 2 of the {@link BinaryModelFormat}: a model laid out to be searched in place,
+ * without first being read onto the heap. The header is that of version 1; all values
+ * are big-endian and all offsets are relative to the start of the body.
+ *
+ * <pre>
+ * body:      u32 category count, then per category:
+ *              u32 name length, UTF-8 name, u32 partition count, then per partition:
+ *                u32 name length, UTF-8 name, u64 matched word total,
+ *                u32 section offset, u32 section length
+ *            the partition sections
+ * section:   u32 word count, u32 slot count, a power of two
+ *            slots[slot count]: i32 word hash, u32 entry offset in the section; 0 if empty
+ *            entries[word count]: u32 word length, UTF-8 word, i64 matching count,
+ *              i64 non-matching count, i64 training partition count,
+ *              i64 training category count, f64 probability
+ * </pre>
+ *
+ * The leading directory locates each partition section and carries its matched word
+ * total, so the partition lists and word counts need no scan of the words. Each section
+ * is an open-addressing hash table, linearly probed, keyed on the {@link String#hashCode()}
+ * of the word and held at most half full.
+ * <p>
+ * The layout is near three times the size of version 1, so a model is saved in it only
+ * when it is to be mapped: when the model file name ends in {@link #SUFFIX}.
+ *
+ * @author Gbr
+ */
+public class IndexedModelFormat {
+
+	/** the suffix of a model file saved in this format, to be mapped */
+	public static final String SUFFIX = ".idx";
+	public static final int VERSION = 2;
+
+	private static final int SECTION_HEADER = 8;
+	private static final int SLOT_SIZE = 8;
+
+	private IndexedModelFormat() {}
+
+	/**
+	 * Locates one partition section of the body.
+	 */
+	static class Section {
+
+		final String category;
+		final String partition;
+		final long total;
+		final int offset;
+		final int length;
+
+		Section(String category, String partition, long total, int offset, int length) {
+			this.category = category;
+			this.partition = partition;
+			this.total = total;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Writes the model to the given file, gzip compressed if the file name ends in
+	 * <code>.gz</code>. Only an uncompressed file can be searched in place.
+	 */
+	public static void write(File f, HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data)
+			throws IOException {
+		// the directory size depends only on the names, so section offsets are known up front
+		long offset = 4;
+		for (Map.Entry<String, HashMap<String, HashMap<String, WordProbabilityPT>>> category : data.entrySet()) {
+			offset += 8 + utf8(category.getKey()).length;
+			for (String partition : category.getValue().keySet()) {
+				offset += 20 + utf8(partition).length;
+			}
+		}
+
+		List<byte[]> sections = new ArrayList<byte[]>();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes, 65536));
+		out.writeInt(data.size());
+		for (Map.Entry<String, HashMap<String, HashMap<String, WordProbabilityPT>>> category : data.entrySet()) {
+			writeName(out, category.getKey());
+			out.writeInt(category.getValue().size());
+			for (Map.Entry<String, HashMap<String, WordProbabilityPT>> partition : category.getValue().entrySet()) {
+				byte[] section = encodeSection(partition.getValue());
+				if (offset + section.length > Integer.MAX_VALUE) {
+					throw new IOException("Model too large for the indexed format: " + f);
+				}
+				long total = 0;
+				for (WordProbabilityPT wp : partition.getValue().values()) {
+					total += wp.getMatchingCount();
+				}
+				writeName(out, partition.getKey());
+				out.writeLong(total);
+				out.writeInt((int) offset);
+				out.writeInt(section.length);
+				sections.add(section);
+				offset += section.length;
+			}
+		}
+		for (byte[] section : sections) {
+			out.write(section);
+		}
+		out.close();
+		BinaryModelFormat.writeFile(f, VERSION, bytes.toByteArray());
+	}
+
+	/*
+	 * Reads the directory of the body; the body position is left unchanged.
+	 */
+	static List<Section> readDirectory(ByteBuffer body) {
+		ByteBuffer buf = body.duplicate();
+		List<Section> dir = new ArrayList<Section>();
+		int categoryCount = buf.getInt();
+		for (int c = 0; c < categoryCount; c++) {
+			String category = BinaryModelFormat.readString(buf, buf.getInt());
+			int partitionCount = buf.getInt();
+			for (int p = 0; p < partitionCount; p++) {
+				String partition = BinaryModelFormat.readString(buf, buf.getInt());
+				long total = buf.getLong();
+				int offset = buf.getInt();
+				int length = buf.getInt();
+				dir.add(new Section(category, partition, total, offset, length));
+			}
+		}
+		return dir;
+	}
+
+	/*
+	 * Decodes the whole of a version 2 body, already checked, onto the heap.
+	 */
+	static HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> decode(ByteBuffer body) {
+		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> categories = new HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>();
+		for (Section s : readDirectory(body)) {
+			HashMap<String, HashMap<String, WordProbabilityPT>> partitions = categories.get(s.category);
+			if (partitions == null) {
+				partitions = new HashMap<String, HashMap<String, WordProbabilityPT>>();
+				categories.put(s.category, partitions);
+			}
+			partitions.put(s.partition, readSection(body, s));
+		}
+		return categories;
+	}
+
+	/*
+	 * Decodes the words of one section onto the heap.
+	 */
+	static HashMap<String, WordProbabilityPT> readSection(ByteBuffer body, Section s) {
+		int count = body.getInt(s.offset);
+		int slots = body.getInt(s.offset + 4);
+		HashMap<String, WordProbabilityPT> words = new HashMap<String, WordProbabilityPT>(
+				BinaryModelFormat.capacity(count));
+		ByteBuffer buf = body.duplicate();
+		for (int idx = 0; idx < slots; idx++) {
+			int entry = body.getInt(s.offset + SECTION_HEADER + idx * SLOT_SIZE + 4);
+			if (entry == 0) continue;
+			int pos = s.offset + entry;
+			int len = body.getInt(pos);
+			buf.position(pos + 4);
+			String word = BinaryModelFormat.readString(buf, len);
+			words.put(word, readEntry(body, pos, word, len));
+		}
+		return words;
+	}
+
+	/*
+	 * Returns the word probability of the given word in the section, or null if the word
+	 * is not present. Reads the body with absolute gets only, so any number of threads may
+	 * search a shared body.
+	 */
+	static WordProbabilityPT lookup(ByteBuffer body, Section s, String word) {
+		return lookup(body, s, word, word.hashCode(), null);
+	}
+
+	/*
+	 * As above, given the hash code of the word and, if already at hand, its UTF-8 bytes.
+	 */
+	static WordProbabilityPT lookup(ByteBuffer body, Section s, String word, int hash, byte[] utf) {
+		int slots = body.getInt(s.offset + 4);
+		int mask = slots - 1;
+		for (int idx = spread(hash) & mask, n = 0; n < slots; idx = (idx + 1) & mask, n++) {
+			int slot = s.offset + SECTION_HEADER + idx * SLOT_SIZE;
+			int entry = body.getInt(slot + 4);
+			if (entry == 0) return null;
+			if (body.getInt(slot) != hash) continue;
+
+			if (utf == null) utf = utf8(word);
+			int pos = s.offset + entry;
+			if (matches(body, pos, utf)) return readEntry(body, pos, word, utf.length);
+		}
+		return null;
+	}
+
+	private static boolean matches(ByteBuffer body, int pos, byte[] utf) {
+		if (body.getInt(pos) != utf.length) return false;
+		for (int idx = 0, at = pos + 4; idx < utf.length; idx++, at++) {
+			if (body.get(at) != utf[idx]) return false;
+		}
+		return true;
+	}
+
+	private static WordProbabilityPT readEntry(ByteBuffer body, int pos, String word, int len) {
+		int at = pos + 4 + len;
+		WordProbabilityPT wp = new WordProbabilityPT(word, body.getLong(at), body.getLong(at + 8));
+		wp.setTrainingPartition(body.getLong(at + 16));
+		wp.setTrainingCategory(body.getLong(at + 24));
+		wp.setProbability(body.getDouble(at + 32));
+		return wp;
+	}
+
+	private static byte[] encodeSection(HashMap<String, WordProbabilityPT> words) throws IOException {
+		int slots = 2;
+		while (slots < words.size() * 2) {
+			slots <<= 1;
+		}
+		int mask = slots - 1;
+		int[] hashes = new int[slots];
+		int[] entries = new int[slots];
+
+		int base = SECTION_HEADER + slots * SLOT_SIZE;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (WordProbabilityPT wp : words.values()) {
+			int hash = wp.getWord().hashCode();
+			int idx = spread(hash) & mask;
+			while (entries[idx] != 0) {
+				idx = (idx + 1) & mask;
+			}
+			hashes[idx] = hash;
+			entries[idx] = base + out.size();
+
+			byte[] utf = utf8(wp.getWord());
+			out.writeInt(utf.length);
+			out.write(utf);
+			out.writeLong(wp.getMatchingCount());
+			out.writeLong(wp.getNonMatchingCount());
+			out.writeLong(wp.getTrainingPartition());
+			out.writeLong(wp.getTrainingCategory());
+			out.writeDouble(wp.getProbability());
+		}
+		out.flush();
+
+		ByteBuffer section = ByteBuffer.allocate(base + bytes.size());
+		section.putInt(words.size()).putInt(slots);
+		for (int idx = 0; idx < slots; idx++) {
+			section.putInt(hashes[idx]).putInt(entries[idx]);
+		}
+		section.put(bytes.toByteArray());
+		return section.array();
+	}
+
+	private static void writeName(DataOutputStream out, String name) throws IOException {
+		byte[] utf = utf8(name);
+		out.writeInt(utf.length);
+		out.write(utf);
+	}
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.classifier4J.bayesian.WordsDataSourceException;
+
+/**
+ * A read-only data source over a model file in the {@link IndexedModelFormat}, mapped
+ * into memory. Words are looked up in place, by probing the hash table of the partition
+ * section, so the words are never read onto the heap: opening a model reads only its
+ * directory, and the pages of the file are shared, through the operating system page
+ * cache, by every process that maps the same model.
+ * <p>
+ * Lookups use absolute reads of the mapped buffer only, so a single data source may be
+ * searched by any number of threads.
+ *
+ * @author Gbr
+ */
+public class MappedWordsDataSource implements IPartitionedWordsDataSource {
+
+	private final File file;
+	private final ByteBuffer body;
+	/** the partition sections by category and partition, in directory order */
+	private final HashMap<String, LinkedHashMap<String, IndexedModelFormat.Section>> sections;
+	/** all partition labels by category */
+	private final HashMap<String, String[]> partitionLists;
+	/** public partition labels by category and reserved labels */
+	private final ConcurrentHashMap<String, String[]> publicCache = new ConcurrentHashMap<String, String[]>();
+	/** matched word counts by category */
+	private final HashMap<String, Integer> categoryCounts;
+
+	private MappedWordsDataSource(File file, ByteBuffer body) {
+		this.file = file;
+		this.body = body;
+		sections = new HashMap<String, LinkedHashMap<String, IndexedModelFormat.Section>>();
+		for (IndexedModelFormat.Section s : IndexedModelFormat.readDirectory(body)) {
+			// the totals partition of older models; the totals are derived
+			if (s.partition.equals(BayesPartitionClassifier.SPACE_TOTALS)) continue;
+			LinkedHashMap<String, IndexedModelFormat.Section> partitions = sections.get(s.category);
+			if (partitions == null) {
+				partitions = new LinkedHashMap<String, IndexedModelFormat.Section>();
+				sections.put(s.category, partitions);
+			}
+			partitions.put(s.partition, s);
+		}
+
+		partitionLists = new HashMap<String, String[]>();
+		categoryCounts = new HashMap<String, Integer>();
+		for (Map.Entry<String, LinkedHashMap<String, IndexedModelFormat.Section>> e : sections.entrySet()) {
+			LinkedHashMap<String, IndexedModelFormat.Section> partitions = e.getValue();
+			partitionLists.put(e.getKey(), partitions.keySet().toArray(new String[partitions.size()]));
+			long total = 0;
+			for (IndexedModelFormat.Section s : partitions.values()) {
+				total += s.total;
+			}
+			categoryCounts.put(e.getKey(), Integer.valueOf((int) total));
+		}
+	}
+
+	/**
+	 * Maps the given model file. Only the header and directory are read; the checksum of
+	 * the body is not verified, since that would read the whole of the file.
+	 *
+	 * @param f an uncompressed model file in the {@link IndexedModelFormat}
+	 * @return the data source
+	 * @throws IOException if the file cannot be mapped or is not an indexed model
+	 */
+	public static MappedWordsDataSource open(File f) throws IOException {
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("Model file too large to map: " + f);
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buf.remaining() < BinaryModelFormat.HEADER_SIZE
+					|| (buf.getShort(BinaryModelFormat.MAGIC.length) & 0xffff) != IndexedModelFormat.VERSION) {
+				throw new IOException("Not an indexed model: " + f);
+			}
+			// the mapping remains valid once the channel is closed
+			return new MappedWordsDataSource(f, BinaryModelFormat.checkHeader(buf, IndexedModelFormat.VERSION,
+					false));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the mapped model file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	public WordProbabilityPT getWordProbability(String category, String partition, String word) {
+		IndexedModelFormat.Section s = findSection(category, partition);
+		return s != null ? IndexedModelFormat.lookup(body, s, word) : null;
+	}
+
+	/**
+	 * Returns the word probabilities of the given terms in each of the given partitions.
+	 * Each term is hashed and encoded once, however many partitions it is looked up in.
+	 */
+	public WordProbabilityPT[][] getWordProbabilities(String category, String[] partitions, String[] terms) {
+		WordProbabilityPT[][] wps = new WordProbabilityPT[partitions.length][terms.length];
+		int[] hashes = new int[terms.length];
+		byte[][] utfs = new byte[terms.length][];
+		for (int t = 0; t < terms.length; t++) {
+			hashes[t] = terms[t].hashCode();
+			utfs[t] = terms[t].getBytes(StandardCharsets.UTF_8);
+		}
+		for (int p = 0; p < partitions.length; p++) {
+			IndexedModelFormat.Section s = findSection(category, partitions[p]);
+			if (s == null) continue;
+			for (int t = 0; t < terms.length; t++) {
+				wps[p][t] = IndexedModelFormat.lookup(body, s, terms[t], hashes[t], utfs[t]);
+			}
+		}
+		return wps;
+	}
+
+	public void addMatch(String category, String partition, String word) throws WordsDataSourceException {
+		throw new WordsDataSourceException("Model is read-only");
+	}
+
+	public void updateWordProbabilities(String category, String partition, String totals, int cnt, int cntTotal)
+			throws WordsDataSourceException {
+		throw new WordsDataSourceException("Model is read-only");
+	}
+
+	public String[] getPartitionList(String category) {
+		return partitionLists.get(category);
+	}
+
+	public String[] getPartitionList(String category, String nonPublics) {
+		String key = category + "/" + nonPublics;
+		String[] publicList = publicCache.get(key);
+		if (publicList != null) return publicList;
+
+		String[] fullList = getPartitionList(category);
+		List<String> l = fullList != null ? new LinkedList<String>(Arrays.asList(fullList))
+				: new ArrayList<String>();
+		for (String element : nonPublics.split("\\s")) {
+			l.remove(element);
+		}
+		publicList = l.toArray(new String[l.size()]);
+		publicCache.put(key, publicList);
+		return publicList;
+	}
+
+	public int getMatchWordCount(String category) {
+		Integer count = categoryCounts.get(category);
+		return count != null ? count.intValue() : 0;
+	}
+
+	public int getMatchWordCount(String category, String partition) {
+		IndexedModelFormat.Section s = findSection(category, partition);
+		return s != null ? (int) s.total : 0;
+	}
+
+	/**
+	 * Returns the heap held by the directory; the mapped words are not counted.
+	 */
+	public long estimateSize() {
+		long size = 0;
+		for (Map.Entry<String, LinkedHashMap<String, IndexedModelFormat.Section>> e : sections.entrySet()) {
+			for (String partition : e.getValue().keySet()) {
+				size += 200 + 2 * (e.getKey().length() + partition.length());
+			}
+		}
+		return size;
+	}
+
+	private IndexedModelFormat.Section findSection(String category, String partition) {
+		LinkedHashMap<String, IndexedModelFormat.Section> partitions = sections.get(category);
+		return partitions != null ? partitions.get(partition) : null;
+	}
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.sf.classifier4J.bayesian.WordsDataSourceException;
+
+/**
+ * Counts the matches added to a model by any number of threads at once, without locking,
+ * until they are drained into the model. Each word has a {@link LongAdder} of its own,
+ * so threads adding the same word contend on separate cells rather than on a lock.
+ * <p>
+ * A drain deducts from each counter the count it passes on, rather than resetting the
+ * counter, so that a match added while the drain runs is passed on by this drain or by
+ * the next, never lost. Counters are kept, for reuse, until the accumulator is cleared:
+ * removing one while matches may still be added could lose a match counted through it.
+ *
+ * @author Gbr
+ */
+class MatchAccumulator {
+
+	/** receives the counts drained */
+	interface Sink {
+
+		void add(String category, String partition, String word, long delta) throws WordsDataSourceException;
+	}
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>> counts = new ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>>();
+	/** whether any match may have been added since the last drain began */
+	private volatile boolean dirty;
+
+	/**
+	 * Counts one match of the given word. Safe to call from any thread.
+	 */
+	void add(String category, String partition, String word) {
+		ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> partitions = counts.get(category);
+		if (partitions == null) {
+			partitions = new ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>();
+			ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>> prior = counts.putIfAbsent(category,
+					partitions);
+			if (prior != null) partitions = prior;
+		}
+		ConcurrentHashMap<String, LongAdder> words = partitions.get(partition);
+		if (words == null) {
+			words = new ConcurrentHashMap<String, LongAdder>();
+			ConcurrentHashMap<String, LongAdder> prior = partitions.putIfAbsent(partition, words);
+			if (prior != null) words = prior;
+		}
+		LongAdder count = words.get(word);
+		if (count == null) {
+			count = new LongAdder();
+			LongAdder prior = words.putIfAbsent(word, count);
+			if (prior != null) count = prior;
+		}
+		count.increment();
+		// written only when clear, so that adding threads share the flag unmodified
+		if (!dirty) dirty = true;
+	}
+
+	/**
+	 * Returns whether matches may have been added since the last drain.
+	 */
+	boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Passes each count added since the last drain to the given sink, deducting it once
+	 * passed. The sink is called on the draining thread only; drains must not overlap.
+	 */
+	void drain(Sink sink) throws WordsDataSourceException {
+		dirty = false;
+		for (Map.Entry<String, ConcurrentHashMap<String, ConcurrentHashMap<String, LongAdder>>> category : counts
+				.entrySet()) {
+			for (Map.Entry<String, ConcurrentHashMap<String, LongAdder>> partition : category.getValue().entrySet()) {
+				for (Map.Entry<String, LongAdder> word : partition.getValue().entrySet()) {
+					long n = word.getValue().sum();
+					if (n == 0) continue;
+					sink.add(category.getKey(), partition.getKey(), word.getKey(), n);
+					word.getValue().add(-n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every counter. Called once matches are no longer added, and every count has
+	 * been drained.
+	 */
+	void clear() {
+		counts.clear();
+		dirty = false;
+	}
+}
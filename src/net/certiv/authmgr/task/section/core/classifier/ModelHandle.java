@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+/**
+ * An atomically swappable reference to a classification model. Classifiers read the
+ * current model once per classification request and use that snapshot for the whole
+ * request, so a swap never affects a classification already in progress.
+ * <p>
+ * Handles obtained from {@link ModelRegistry#watch(String)} track a model file and are
+ * swapped to the new version, in the background, whenever the file is rewritten. Handles
+ * created directly around a data source are fixed.
+ * <p>
+ * A snapshot taken through {@link #acquire()} is referenced until given back through
+ * {@link #release(IPartitionedWordsDataSource)}, so the registry does not close a
+ * snapshot, swapped out or evicted, while a request is still using it.
+ *
+ * @author Gbr
+ */
+public class ModelHandle {
+
+	private final String modelName;
+	private volatile IPartitionedWordsDataSource current;
+	private volatile long stamp;
+
+	/** last modification time seen, but not yet loaded, by the registry watcher */
+	long pending;
+	/** last modification time that failed to load */
+	long failed;
+
+	/**
+	 * Creates a fixed handle on the given data source.
+	 *
+	 * @param pds the data source
+	 */
+	public ModelHandle(IPartitionedWordsDataSource pds) {
+		this(null, pds, 0);
+	}
+
+	ModelHandle(String modelName, IPartitionedWordsDataSource pds, long stamp) {
+		if (pds == null) {
+			throw new IllegalArgumentException("IPartitionedWordsDataSource can't be null");
+		}
+		this.modelName = modelName;
+		this.current = pds;
+		this.stamp = stamp;
+	}
+
+	/**
+	 * Returns the current model snapshot.
+	 */
+	public IPartitionedWordsDataSource current() {
+		return current;
+	}
+
+	/**
+	 * Returns the current model snapshot, referenced until released. Every snapshot
+	 * acquired must be released, once the request using it completes.
+	 */
+	public IPartitionedWordsDataSource acquire() {
+		if (!isWatched()) return current;
+		return ModelRegistry.getDefault().acquire(this);
+	}
+
+	/**
+	 * Releases a snapshot acquired from this handle.
+	 *
+	 * @param pds the snapshot returned by {@link #acquire()}
+	 */
+	public void release(IPartitionedWordsDataSource pds) {
+		if (isWatched()) ModelRegistry.getDefault().release(pds);
+	}
+
+	/**
+	 * Returns the name of the watched model file, or null for a fixed handle.
+	 */
+	public String getModelName() {
+		return modelName;
+	}
+
+	/**
+	 * Returns the modification time of the model file the current snapshot was loaded
+	 * from.
+	 */
+	public long getStamp() {
+		return stamp;
+	}
+
+	public boolean isWatched() {
+		return modelName != null;
+	}
+
+	/* Publishes a newly loaded model; readers pick it up on their next request. */
+	void swap(IPartitionedWordsDataSource pds, long stamp) {
+		this.current = pds;
+		this.stamp = stamp;
+	}
+}
@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.certiv.authmgr.app.util.Log;
+
+/**
+ * Process-wide cache of loaded classification models. Each model file is deserialized
+ * once and the resulting data source is shared by all classifiers that name the same
+ * file. Models are keyed by absolute path and last modification time, so a rewritten
+ * model file is loaded fresh on its next acquisition.
+ * <p>
+ * Resident models are held in least-recently-used order and evicted once their
+ * estimated combined size exceeds the memory budget. The most recently acquired model
+ * is never evicted, even if it alone exceeds the budget.
+ * <p>
+ * Data sources returned by the registry are shared across instances and threads, and
+ * are frozen: compiled and read-only. Models in the {@link IndexedModelFormat}, saved
+ * under an ".idx" name, are not loaded at all, but mapped as a
+ * {@link MappedWordsDataSource}; only their directory counts against the memory budget. Models held in a {@link BTreeFile} are opened
+ * read-only as a {@link BTreeWordsDataSource}; their page cache counts. A tree serves one
+ * lookup at a time, so the parallel classification of pages and batches runs serially
+ * against a tree model.
+ * <p>
+ * Models are reference counted: one reference while resident, one per acquisition not
+ * yet released, and one per watched handle it is the current snapshot of. A model that
+ * holds its file open, as a tree does, is closed on its last release, once it is no
+ * longer resident, so it is never closed under a classification still using it.
+ * <p>
+ * A {@link ModelHandle} obtained through {@link #watch(String)} follows its model file:
+ * a background thread polls the file and, once a rewrite has settled, loads and compiles
+ * the new version and swaps it into the handle. Classification in progress is never
+ * blocked by the reload.
+ *
+ * @author Gbr
+ */
+public class ModelRegistry {
+
+	private static final ModelRegistry registry = new ModelRegistry();
+
+	/** model file poll interval, in milliseconds */
+	public static final long WATCH_INTERVAL = 5000;
+
+	/** resident models, in access order */
+	private final LinkedHashMap<String, ModelEntry> models;
+	/** references held on each open model loaded by the registry */
+	private final IdentityHashMap<IPartitionedWordsDataSource, Integer> refs;
+	/** watched models, by absolute path */
+	private final HashMap<String, ModelHandle> handles;
+	/** shared token filters, by stop words list */
+	private final HashMap<String, CombinedTokenFilter> filters;
+	private ScheduledExecutorService watcher;
+	private boolean watching;
+	private long budget;
+	private long resident;
+
+	/**
+	 * Returns the shared, process-wide registry.
+	 */
+	public static ModelRegistry getDefault() {
+		return registry;
+	}
+
+	private ModelRegistry() {
+		models = new LinkedHashMap<String, ModelEntry>(8, 0.75f, true);
+		refs = new IdentityHashMap<IPartitionedWordsDataSource, Integer>();
+		handles = new HashMap<String, ModelHandle>();
+		filters = new HashMap<String, CombinedTokenFilter>();
+		budget = Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * Returns the shared data source for the named model file, loading the file if it is
+	 * not already resident. Concurrent requests for the same model wait on a single load.
+	 * The data source is referenced until given back through
+	 * {@link #release(IPartitionedWordsDataSource)}.
+	 *
+	 * @param modelName Canonical name of the file containing the model.
+	 * @return the shared, frozen data source.
+	 */
+	public IPartitionedWordsDataSource acquire(String modelName) {
+		while (true) {
+			IPartitionedWordsDataSource pds = load(modelName);
+			if (pds != null) return pds;
+			// closed on eviction before it could be referenced; load it afresh
+		}
+	}
+
+	/**
+	 * Releases a data source returned by {@link #acquire(String)}. A data source that
+	 * holds its file open is closed on its last release, once no longer resident.
+	 */
+	public synchronized void release(IPartitionedWordsDataSource pds) {
+		Integer count = refs.get(pds);
+		if (count == null) return;
+		if (count > 1) {
+			refs.put(pds, count - 1);
+			return;
+		}
+		refs.remove(pds);
+		if (pds instanceof Closeable) {
+			try {
+				((Closeable) pds).close();
+			} catch (IOException e) {
+				Log.warn(this, "Failed to close model: " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Returns the data source for the named model file, loaded if not resident, and
+	 * referenced; null if it was closed before it could be referenced.
+	 */
+	private IPartitionedWordsDataSource load(final String modelName) {
+		File file = new File(modelName).getAbsoluteFile();
+		final String path = file.getPath();
+		final String key = path + "@" + file.lastModified();
+
+		ModelEntry entry;
+		boolean owner = false;
+		synchronized (this) {
+			entry = models.get(key);
+			if (entry == null) {
+				entry = new ModelEntry(new FutureTask<IPartitionedWordsDataSource>(
+						new Callable<IPartitionedWordsDataSource>() {
+
+							public IPartitionedWordsDataSource call() throws Exception {
+								File f = new File(modelName);
+								if (f.exists() && BinaryModelFormat.readVersion(f) == IndexedModelFormat.VERSION
+										&& !TrainingLog.hasLog(f)) {
+									return MappedWordsDataSource.open(f);
+								}
+								if (BTreeFile.isTree(f)) {
+									return BTreeWordsDataSource.open(f, BTreeWordsDataSource.DEFAULT_CACHE_PAGES, true);
+								}
+								PersistantWordsDataSource pds;
+								if (f.exists()) {
+									pds = PersistantWordsDataSource.readModel(modelName);
+								} else {
+									pds = new PersistantWordsDataSource(modelName);
+								}
+								pds.freeze();
+								return pds;
+							}
+						}) {
+
+					@Override
+					protected void set(IPartitionedWordsDataSource pds) {
+						// open from the moment it is loaded; referenced while resident
+						synchronized (ModelRegistry.this) {
+							refs.put(pds, models.containsKey(key) ? 1 : 0);
+						}
+						super.set(pds);
+					}
+				});
+				models.put(key, entry);
+				owner = true;
+			}
+		}
+
+		// load outside of the registry lock; other callers wait on the future
+		if (owner) {
+			entry.loader.run();
+		}
+
+		IPartitionedWordsDataSource pds;
+		try {
+			pds = entry.loader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted loading model " + modelName, e);
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				models.remove(key);
+			}
+			throw new IllegalStateException("Failed to load model " + modelName, e.getCause());
+		}
+
+		long size = owner ? pds.estimateSize() : 0;
+		synchronized (this) {
+			if (!retain(pds)) return null;
+			if (owner) {
+				if (models.get(key) == entry) {
+					entry.size = size;
+					resident += size;
+				}
+				dropStale(path, key);
+				evict(key);
+			}
+		}
+		if (owner) Log.info(this, "Loaded model " + key + " (~" + (size >> 20) + "MB resident)");
+		return pds;
+	}
+
+	/*
+	 * Returns the current snapshot of the watched handle, referenced until released.
+	 */
+	synchronized IPartitionedWordsDataSource acquire(ModelHandle handle) {
+		IPartitionedWordsDataSource pds = handle.current();
+		retain(pds);
+		return pds;
+	}
+
+	/**
+	 * Returns the shared, self-updating handle for the named model file. The handle is
+	 * swapped to each new version of the file as it is written.
+	 *
+	 * @param modelName Canonical name of the file containing the model.
+	 * @return the watched model handle.
+	 */
+	public ModelHandle watch(String modelName) {
+		String path = new File(modelName).getAbsolutePath();
+		synchronized (this) {
+			ModelHandle handle = handles.get(path);
+			if (handle != null) return handle;
+		}
+
+		// the handle holds the reference to its current snapshot
+		long stamp = new File(path).lastModified();
+		IPartitionedWordsDataSource pds = acquire(path);
+		synchronized (this) {
+			ModelHandle handle = handles.get(path);
+			if (handle == null) {
+				handle = new ModelHandle(path, pds, stamp);
+				handles.put(path, handle);
+				startWatcher();
+			} else {
+				release(pds);
+			}
+			return handle;
+		}
+	}
+
+	/**
+	 * Returns a shared token filter for the named stop words list. Token filters are safe
+	 * for concurrent use, so one instance serves every classifier.
+	 *
+	 * @param stopWords name of the stop words list file
+	 * @return the shared token filter
+	 * @throws IOException if the stop words list cannot be read
+	 */
+	public CombinedTokenFilter getTokenFilter(String stopWords) throws IOException {
+		synchronized (filters) {
+			CombinedTokenFilter tok = filters.get(stopWords);
+			if (tok == null) {
+				tok = new CombinedTokenFilter(stopWords);
+				filters.put(stopWords, tok);
+			}
+			return tok;
+		}
+	}
+
+	/**
+	 * Sets the memory budget, in bytes, for the combined estimated size of all resident
+	 * models.
+	 */
+	public synchronized void setMemoryBudget(long bytes) {
+		budget = bytes;
+		evict(null);
+	}
+
+	public synchronized long getMemoryBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the combined estimated size, in bytes, of the resident models.
+	 */
+	public synchronized long getResidentSize() {
+		return resident;
+	}
+
+	/**
+	 * Drops every resident model. A data source still referenced, by a watched handle or
+	 * an acquisition not yet released, stays open until its last release.
+	 */
+	public synchronized void clear() {
+		List<ModelEntry> dropped = new ArrayList<ModelEntry>(models.values());
+		models.clear();
+		resident = 0;
+		for (ModelEntry e : dropped) {
+			release(loaded(e));
+		}
+	}
+
+	private ScheduledExecutorService scheduler() {
+		if (watcher == null) {
+			watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Section model watcher");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		}
+		return watcher;
+	}
+
+	private void startWatcher() {
+		if (watching) return;
+		watching = true;
+		scheduler().scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				poll();
+			}
+		}, WATCH_INTERVAL, WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Checks each watched model file for a rewrite. A changed modification time must be
+	 * seen unchanged on two successive polls before the file is loaded, so a model still
+	 * being written is not picked up.
+	 */
+	private void poll() {
+		List<ModelHandle> watched;
+		synchronized (this) {
+			watched = new ArrayList<ModelHandle>(handles.values());
+		}
+		for (ModelHandle handle : watched) {
+			long stamp = new File(handle.getModelName()).lastModified();
+			if (stamp == 0 || stamp == handle.getStamp() || stamp == handle.failed) {
+				handle.pending = 0;
+			} else if (stamp != handle.pending) {
+				handle.pending = stamp;
+			} else {
+				try {
+					IPartitionedWordsDataSource next = acquire(handle.getModelName());
+					synchronized (this) {
+						IPartitionedWordsDataSource prior = handle.current();
+						handle.swap(next, stamp);
+						release(prior);
+					}
+					handle.pending = 0;
+					Log.info(this, "Swapped in model " + handle.getModelName());
+				} catch (RuntimeException e) {
+					// keep serving the prior snapshot; retry on the next change
+					handle.failed = stamp;
+					handle.pending = 0;
+					Log.error(this, "Model reload failed " + handle.getModelName(), e);
+				}
+			}
+		}
+	}
+
+	/* Drops superseded versions of the given model path. */
+	private void dropStale(String path, String current) {
+		String prefix = path + "@";
+		for (Iterator<Map.Entry<String, ModelEntry>> it = models.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, ModelEntry> e = it.next();
+			if (e.getKey().startsWith(prefix) && !e.getKey().equals(current) && e.getValue().loader.isDone()) {
+				resident -= e.getValue().size;
+				it.remove();
+				release(loaded(e.getValue()));
+			}
+		}
+	}
+
+	/* Evicts least recently used models, other than the given key, until within budget. */
+	private void evict(String keep) {
+		for (Iterator<Map.Entry<String, ModelEntry>> it = models.entrySet().iterator(); it.hasNext()
+				&& resident > budget;) {
+			Map.Entry<String, ModelEntry> e = it.next();
+			if (e.getKey().equals(keep) || !e.getValue().loader.isDone()) continue;
+			resident -= e.getValue().size;
+			it.remove();
+			release(loaded(e.getValue()));
+			Log.info(this, "Evicted model " + e.getKey());
+		}
+	}
+
+	/* Adds a reference to an open data source; false if it has been closed. */
+	private boolean retain(IPartitionedWordsDataSource pds) {
+		Integer count = refs.get(pds);
+		if (count == null) return false;
+		refs.put(pds, count + 1);
+		return true;
+	}
+
+	/* Returns the data source loaded by the entry; null if still loading or failed. */
+	private static IPartitionedWordsDataSource loaded(ModelEntry e) {
+		if (!e.loader.isDone()) return null;
+		try {
+			return e.loader.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException ex) {
+			return null;
+		}
+	}
+
+	private static class ModelEntry {
+
+		final FutureTask<IPartitionedWordsDataSource> loader;
+		long size;
+
+		ModelEntry(FutureTask<IPartitionedWordsDataSource> loader) {
+			this.loader = loader;
+		}
+	}
+}
@@ -11,21 +11,29 @@
 package net.certiv.authmgr.task.section.core.classifier;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import net.certiv.authmgr.app.util.Log;
 import net.sf.classifier4J.ICategorisedClassifier;
@@ -33,8 +41,9 @@ import net.sf.classifier4J.bayesian.WordsDataSourceException;
 
 /**
  * DataSource used by BayesianClassifier to persistantly manage the word sets in multiple
- * named categories. As stored, the data is a gzipped, XML encoded representation of the
- * in-memory HashMap (categories) of HashMaps of word probabilities.
+ * named categories. As stored, the data is the in-memory HashMap (categories) of HashMaps
+ * of word probabilities, written in the {@link BinaryModelFormat}, or in the
+ * {@link IndexedModelFormat} if the model file name ends in ".idx".
  * <p>
  * Typical multiple partition use (training): <code>
  * 		PersistantWordsDataSource pds = new PersistantWordsDataSource();
@@ -51,6 +60,10 @@ import net.sf.classifier4J.bayesian.WordsDataSourceException;
  * 		double partitionLable1 = classifier.classify("categoryname1", "my string of words");
  * </code>
  * <p>
+ * An uncompressed model file in the {@link IndexedModelFormat} is opened lazily: only its
+ * directory is read, and each category is loaded on first access. A single partition may
+ * be loaded on its own through {@link #getWords(String, String)}.
+ * <p>
  * The result of the partitioned classification is not a score value, but an index into
  * the list of partition labels. This breaks the interface contract for this method
  * relative to the simple BayesianClassifier, but would otherwise require a complete
@@ -61,13 +74,62 @@ import net.sf.classifier4J.bayesian.WordsDataSourceException;
  */
 public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 
-	/** Top level in-memory data structure storing the model as a hashmap of hashmaps. */
-	private HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> categories;
+	/**
+	 * Top level in-memory data structure storing the model as a hashmap of hashmaps.
+	 * Lazily loaded sections are published by replacing the map, never by changing it.
+	 */
+	private volatile HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> categories;
+	/** sections not yet loaded, by category and partition; null once all are loaded */
+	private volatile HashMap<String, HashMap<String, IndexedModelFormat.Section>> pending;
+	/** the mapped body of the model file, while sections remain to be loaded */
+	private ByteBuffer source;
+	/** partition labels by category; set when compiled */
+	private HashMap<String, String[]> partitionCache;
+	/** public partition labels by category and reserved labels; set when compiled */
+	private ConcurrentHashMap<String, String[]> publicCache;
+	/** matched word counts by category and by category/partition; set when compiled */
+	private HashMap<String, Integer> countCache;
+	/** per-term totals by category, derived from its partitions when first needed */
+	private final HashMap<String, TermCounts> termTotals = new HashMap<String, TermCounts>();
+	/** whether the model is read-only */
+	private boolean frozen;
 	// private boolean xmlStore;
 	// private boolean compressedStore;
 
 	private static final String DEFAULT_PARTITION = "DEFAULT";
 
+	/** the training log, the model file it logs against, and its pending compaction */
+	private TrainingLog log;
+	private File logModel;
+	private Future<File> compaction;
+	/** categories trained since the last compaction */
+	private final Set<String> touched = new HashSet<String>();
+
+	/** counts the matches added while training concurrently; null otherwise */
+	private volatile MatchAccumulator accumulator;
+	/** whether the accumulated matches are being added to the model, or held off */
+	private boolean draining;
+	private final MatchAccumulator.Sink sink = new MatchAccumulator.Sink() {
+
+		public void add(String category, String partition, String word, long delta)
+				throws WordsDataSourceException {
+			PersistantWordsDataSource.this.add(category, partition, word, delta);
+		}
+	};
+
+	/** least size, in bytes, of a training log compacted when committed */
+	private static final long COMPACT_MIN_SIZE = 1 << 20;
+
+	/** writes models in the background, one at a time and in the order submitted */
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Section model writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
 	/**
 	 * Creates a new persistant data source initialized to an empty category HashMap.
 	 */
@@ -81,22 +143,125 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 	 * @param modelName Canonical name of the file containing the model.
 	 */
 	public PersistantWordsDataSource(String modelName) {
-		loadModel(modelName);
+		openModel(modelName);
+	}
+
+	/**
+	 * Reads an existing model from a named file. Unlike {@link #loadModel(String)}, a
+	 * missing or unreadable file is reported rather than replaced by a new, empty model.
+	 * An indexed model file is opened lazily. Any training log of the file is replayed.
+	 *
+	 * @param modelName Canonical name of the file containing the model.
+	 * @return a data source holding the model.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static PersistantWordsDataSource readModel(String modelName) throws IOException, ClassNotFoundException {
+		PersistantWordsDataSource pds = new PersistantWordsDataSource();
+		File f = new File(modelName);
+		if (!pds.openIndexed(f)) {
+			pds.categories = dropTotals(pds.modelReader(f));
+		}
+		pds.replayLog(f);
+		return pds;
 	}
 
 	/**
-	 * Loads a model from a named file. Creates a new model if none exists.
+	 * Precomputes the partition lists and matched word counts that classification
+	 * otherwise derives, on every request, by walking the model. Intended for models that
+	 * are no longer being trained; any further training discards the precomputed values.
+	 * Covers the categories loaded so far; each category loaded later is added as it is.
+	 */
+	public synchronized void compile() {
+		settle();
+		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> cats = categories;
+		HashMap<String, String[]> partitionLists = new HashMap<String, String[]>();
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (String category : cats.keySet()) {
+			HashMap<String, HashMap<String, WordProbabilityPT>> partitions = cats.get(category);
+			if (!partitions.isEmpty()) {
+				partitionLists.put(category, partitions.keySet().toArray(new String[partitions.size()]));
+			}
+			int total = 0;
+			for (String partition : partitions.keySet()) {
+				int count = countMatches(partitions.get(partition));
+				counts.put(category + "/" + partition, count);
+				total += count;
+			}
+			counts.put(category, total);
+		}
+		partitionCache = partitionLists;
+		publicCache = new ConcurrentHashMap<String, String[]>();
+		countCache = counts;
+	}
+
+	public boolean isCompiled() {
+		return countCache != null;
+	}
+
+	/**
+	 * Compiles the model and makes it read-only. Once frozen, the model may be shared by
+	 * any number of concurrent classifiers; training or reloading it is rejected.
+	 */
+	public void freeze() {
+		stopConcurrentTraining();
+		compile();
+		frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkMutable() {
+		if (frozen) {
+			throw new IllegalStateException("Model is read-only");
+		}
+	}
+
+	/* Drops precomputed values invalidated by a change to the model. */
+	private void decompile() {
+		partitionCache = null;
+		publicCache = null;
+		countCache = null;
+	}
+
+	/**
+	 * Loads the whole of a model from a named file. Creates a new model if none exists.
 	 * 
 	 * @param modelName The canonical name.
 	 * @return The HashMap data structure contained in the file.
 	 */
-	@SuppressWarnings("unchecked")
 	public HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> loadModel(String modelName) {
+		openModel(modelName);
+		loadAll();
+		return categories;
+	}
+
+	/*
+	 * Opens a model from a named file, lazily if the file is an indexed model, and replays
+	 * any training log of the file. Creates a new model if none exists.
+	 */
+	private void openModel(String modelName) {
+		checkMutable();
+		decompile();
+		pending = null;
+		source = null;
+		termTotals.clear();
+		if (accumulator != null) accumulator = new MatchAccumulator();
 		try {
 			// keep an instance reference to the data file
-			categories = (HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>) modelReader(
-					new File(modelName));
-			return categories;
+			File f = new File(modelName);
+			if (!openIndexed(f)) {
+				categories = dropTotals(modelReader(f));
+			}
+			try {
+				replayLog(f);
+			} catch (IOException e) {
+				// keep the checkpoint rather than replace it below
+				Log.error(this, "Failed to replay training log of " + modelName, e);
+			}
+			return;
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
@@ -111,82 +276,386 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 		m1.put(ICategorisedClassifier.DEFAULT_CATEGORY, m2);
 		saveModel(modelName, m1);
 		categories = m1;
-		return categories;
+	}
+
+	/*
+	 * Maps an uncompressed indexed model file and reads its directory, leaving every
+	 * section to be loaded on first access. Returns false, having read nothing, if the
+	 * file is not an uncompressed indexed model. The body checksum is not verified.
+	 */
+	private boolean openIndexed(File f) throws IOException {
+		if (!f.isFile() || BinaryModelFormat.readVersion(f) != IndexedModelFormat.VERSION) return false;
+
+		ByteBuffer body;
+		FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE) return false;
+			body = BinaryModelFormat.checkHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+					IndexedModelFormat.VERSION, false);
+		} finally {
+			channel.close();
+		}
+
+		HashMap<String, HashMap<String, IndexedModelFormat.Section>> waiting = new HashMap<String, HashMap<String, IndexedModelFormat.Section>>();
+		for (IndexedModelFormat.Section s : IndexedModelFormat.readDirectory(body)) {
+			if (isTotals(s.partition)) continue; // derived, not loaded
+			HashMap<String, IndexedModelFormat.Section> sections = waiting.get(s.category);
+			if (sections == null) {
+				sections = new HashMap<String, IndexedModelFormat.Section>();
+				waiting.put(s.category, sections);
+			}
+			sections.put(s.partition, s);
+		}
+		categories = new HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>();
+		source = waiting.isEmpty() ? null : body;
+		pending = waiting.isEmpty() ? null : waiting;
+		return true;
+	}
+
+	/**
+	 * Loads every category not yet loaded.
+	 */
+	public synchronized void loadAll() {
+		settle();
+		while (pending != null) {
+			load(pending.keySet().iterator().next(), null);
+		}
+	}
+
+	/* Loads the given category, if not yet loaded, and adds any matches accumulated. */
+	private void require(String category) {
+		settle();
+		HashMap<String, HashMap<String, IndexedModelFormat.Section>> waiting = pending;
+		if (waiting != null && waiting.containsKey(category)) {
+			load(category, null);
+		}
+	}
+
+	/*
+	 * Loads the given partition, or every partition of the category if the partition is
+	 * null, that remains to be loaded. The new sections are published, and the compiled
+	 * values updated, before the sections are removed from the pending set.
+	 */
+	private synchronized void load(String category, String partition) {
+		HashMap<String, HashMap<String, IndexedModelFormat.Section>> waiting = pending;
+		if (waiting == null || !waiting.containsKey(category)) return;
+		HashMap<String, IndexedModelFormat.Section> sections = waiting.get(category);
+		if (partition != null && !sections.containsKey(partition)) return;
+
+		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> cats = new HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>(
+				categories);
+		HashMap<String, HashMap<String, WordProbabilityPT>> partitions = cats.get(category);
+		partitions = partitions != null ? new HashMap<String, HashMap<String, WordProbabilityPT>>(partitions)
+				: new HashMap<String, HashMap<String, WordProbabilityPT>>();
+		HashMap<String, IndexedModelFormat.Section> remaining = new HashMap<String, IndexedModelFormat.Section>(
+				sections);
+		for (IndexedModelFormat.Section s : sections.values()) {
+			if (partition == null || s.partition.equals(partition)) {
+				partitions.put(s.partition, IndexedModelFormat.readSection(source, s));
+				remaining.remove(s.partition);
+			}
+		}
+		cats.put(category, partitions);
+		categories = cats;
+		if (countCache != null) compile();
+
+		waiting = new HashMap<String, HashMap<String, IndexedModelFormat.Section>>(waiting);
+		if (remaining.isEmpty()) {
+			waiting.remove(category);
+		} else {
+			waiting.put(category, remaining);
+		}
+		if (waiting.isEmpty()) {
+			source = null; // releases the mapping
+			pending = null;
+		} else {
+			pending = waiting;
+		}
+		Log.debug(this, "Loaded model sections " + category + (partition != null ? "/" + partition : ""));
+	}
+
+	/**
+	 * Returns the names of all categories in the model, whether or not yet loaded.
+	 */
+	public String[] getCategoryList() {
+		settle();
+		Set<String> names = new LinkedHashSet<String>(categories.keySet());
+		HashMap<String, HashMap<String, IndexedModelFormat.Section>> waiting = pending;
+		if (waiting != null) names.addAll(waiting.keySet());
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Returns the labels of all partitions in the given category, whether or not yet
+	 * loaded.
+	 *
+	 * @param category the category to check
+	 * @return the partition labels; empty if the category does not exist
+	 */
+	public String[] getPartitionNames(String category) {
+		settle();
+		Set<String> names = new LinkedHashSet<String>();
+		HashMap<String, HashMap<String, WordProbabilityPT>> partitions = categories.get(category);
+		if (partitions != null) names.addAll(partitions.keySet());
+		HashMap<String, HashMap<String, IndexedModelFormat.Section>> waiting = pending;
+		if (waiting != null && waiting.containsKey(category)) names.addAll(waiting.get(category).keySet());
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Returns the words of a single partition, loading that partition alone if it is not
+	 * yet loaded.
+	 *
+	 * @param category the category of the partition
+	 * @param partition the partition label
+	 * @return the word probabilities by word, or null if the partition does not exist
+	 */
+	public HashMap<String, WordProbabilityPT> getWords(String category, String partition) {
+		settle();
+		load(category, partition);
+		HashMap<String, HashMap<String, WordProbabilityPT>> partitions = categories.get(category);
+		return partitions != null ? partitions.get(partition) : null;
 	}
 
 	/**
-	 * Saves the current model to a named file.
+	 * Saves the current model to a named file. A save to the file of the training log, if
+	 * any, compacts the log.
 	 * 
 	 * @param modelName Canonical name of the file to save to.
 	 */
 	public void saveModel(String modelName) {
+		if (log != null && new File(modelName).getAbsoluteFile().equals(logModel)) {
+			try {
+				compactLog().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Log.error(this, "Failed to save model " + modelName, e.getCause());
+			}
+			return;
+		}
+		loadAll();
 		saveModel(modelName, categories);
 	}
 
 	/**
-	 * Saves a model to a named file.
+	 * Saves a model to a named file, waiting for the save to complete. The file is
+	 * replaced atomically, as by {@link #saveModelAsync(String, String)}.
 	 * 
 	 * @param modelName Canonical name of the file to save to.
 	 * @param data The HashMap data object to be saved.
 	 */
 	public void saveModel(String modelName, HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data) {
 		try {
-			modelWriter(new File(modelName), data);
-		} catch (IOException e) {
+			// through the writer, so as to follow any background save still in progress
+			submitSave(new File(modelName), null, data, null, 0).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.warn(this, "Save Model interrupted.");
+		} catch (ExecutionException e) {
 			Log.warn(this, "Save Model I/O failure.");
-			e.printStackTrace();
+			e.getCause().printStackTrace();
 		}
 	}
 
 	/**
-	 * Creates a reader for a given file. Detects whether the file is gzipped or not based
-	 * on whether the suffix contains ".gz".
+	 * Saves a snapshot of the current model to a named file in the background. The model
+	 * is copied on the calling thread, so training may continue as soon as this returns.
+	 * The copy is written to a temporary file beside the target, forced to disk, and
+	 * renamed over the target in a single atomic step: readers of the target see either
+	 * the prior or the new model, never a partial one, and a failed save leaves the prior
+	 * model in place. Saves run one at a time, in the order requested.
+	 * 
+	 * @param modelName Canonical name of the file to save to.
+	 * @param backupName Canonical name of the file to keep any prior model as, or null.
+	 * @return a future giving the saved file, or the failure of the save.
+	 */
+	public synchronized Future<File> saveModelAsync(String modelName, String backupName) {
+		File target = new File(modelName);
+		File backup = backupName != null ? new File(backupName) : null;
+
+		// add the matches accumulated so far, then hold off adding more until the model is
+		// copied, so that the copy includes exactly the logged deltas up to its sequence
+		drain();
+		draining = true;
+		try {
+			if (log == null || !target.getAbsoluteFile().equals(logModel)) {
+				return submitSave(target, backup, snapshot(), null, 0);
+			}
+
+			// a save of the logged model compacts the log
+			for (String category : touched) {
+				updateWordProbabilities(category, BayesPartitionClassifier.SPACE_TOTALS);
+			}
+			touched.clear();
+			long seq = log.getSequence();
+			Future<File> saved = submitSave(target, backup, snapshot(), log, seq);
+			compaction = saved;
+			return saved;
+		} finally {
+			draining = false;
+		}
+	}
+
+	/* Returns a deep copy of the whole of the model. */
+	private HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> snapshot() {
+		loadAll();
+		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> copy = new HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>();
+		for (String category : categories.keySet()) {
+			HashMap<String, HashMap<String, WordProbabilityPT>> partitions = new HashMap<String, HashMap<String, WordProbabilityPT>>();
+			for (Map.Entry<String, HashMap<String, WordProbabilityPT>> e : categories.get(category).entrySet()) {
+				HashMap<String, WordProbabilityPT> words = new HashMap<String, WordProbabilityPT>(
+						BinaryModelFormat.capacity(e.getValue().size()));
+				for (WordProbabilityPT wp : e.getValue().values()) {
+					words.put(wp.getWord(), new WordProbabilityPT(wp));
+				}
+				partitions.put(e.getKey(), words);
+			}
+			copy.put(category, partitions);
+		}
+		return copy;
+	}
+
+	private Future<File> submitSave(final File target, final File backup,
+			final HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data, final TrainingLog tl,
+			final long seq) {
+		return writer.submit(new Callable<File>() {
+
+			public File call() throws IOException {
+				writeAtomic(target, backup, data, tl, seq);
+				return target;
+			}
+		});
+	}
+
+	/*
+	 * Writes the model to a temporary file in the directory of the target, keeping any
+	 * .gz or .idx suffix, then keeps the prior target as the backup, if any, and renames the
+	 * temporary file over the target. Given a training log, marks the log with the new
+	 * checkpoint before the rename, and rebases the log on it after.
+	 */
+	private void writeAtomic(File target, File backup,
+			HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data, TrainingLog tl, long seq)
+			throws IOException {
+		File dir = target.getAbsoluteFile().getParentFile();
+		String suffix = ".tmp";
+		if (target.getName().endsWith(".gz")) {
+			suffix = ".tmp.gz";
+		} else if (target.getName().endsWith(IndexedModelFormat.SUFFIX)) {
+			suffix = ".tmp" + IndexedModelFormat.SUFFIX;
+		}
+		File tmp = File.createTempFile(target.getName() + ".", suffix, dir);
+		int crc = 0;
+		try {
+			modelWriter(tmp, data);
+			if (tl != null) {
+				crc = BinaryModelFormat.readChecksum(tmp);
+				tl.mark(crc, seq);
+			}
+			if (backup != null && target.exists()) {
+				Files.deleteIfExists(backup.toPath());
+				try {
+					Files.createLink(backup.toPath(), target.toPath());
+				} catch (IOException e) {
+					Files.copy(target.toPath(), backup.toPath());
+				} catch (UnsupportedOperationException e) {
+					Files.copy(target.toPath(), backup.toPath());
+				}
+			}
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+
+		// persist the rename itself; not every platform can open a directory
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {}
+		if (tl != null) tl.rebase(crc, seq);
+		Log.debug(this, "Saved model " + target);
+	}
+
+	/**
+	 * Reads the model held in a given file. Models in the binary model format and Java
+	 * serialized models are both read, either possibly gzip compressed.
 	 * 
 	 * @param f The File in which the object is stored.
 	 * @return The object contained in the file.
 	 * @throws IOException
 	 * @throws ClassNotFoundException
+	 * @see BinaryModelFormat
 	 */
 	private Object modelReader(File f) throws ClassNotFoundException, IOException {
-		ObjectInput input;
-		// XMLDecoder input;
-		Object data;
+		return BinaryModelFormat.read(f);
+	}
 
-		if (f.getName().endsWith(".gz")) {
-			input = new ObjectInputStream(new GZIPInputStream(new FileInputStream(f)));
-			// input = new XMLDecoder(new GZIPInputStream(new FileInputStream(f)));
-		} else {
-			input = new ObjectInputStream(new FileInputStream(f));
-			// input = new XMLDecoder(new FileInputStream(f));
+	/*
+	 * Drops from each category of a model read the reserved partition of word term totals
+	 * that models saved before the totals were derived still hold.
+	 */
+	@SuppressWarnings("unchecked")
+	private static HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> dropTotals(Object model) {
+		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> cats = (HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>>) model;
+		for (HashMap<String, HashMap<String, WordProbabilityPT>> partitions : cats.values()) {
+			partitions.remove(BayesPartitionClassifier.SPACE_TOTALS);
+		}
+		return cats;
+	}
+
+	private static boolean isTotals(String partition) {
+		return BayesPartitionClassifier.SPACE_TOTALS.equals(partition);
+	}
+
+	/*
+	 * Returns the per-term totals of the given category, summed over its partitions when
+	 * first needed and kept current by each match added after.
+	 */
+	private TermCounts termTotals(String category) {
+		TermCounts sums = termTotals.get(category);
+		if (sums == null) {
+			require(category);
+			HashMap<String, HashMap<String, WordProbabilityPT>> partitions = categories.get(category);
+			int expected = 0;
+			if (partitions != null) {
+				for (HashMap<String, WordProbabilityPT> words : partitions.values()) {
+					expected = Math.max(expected, words.size());
+				}
+			}
+			sums = new TermCounts(expected);
+			if (partitions != null) {
+				for (HashMap<String, WordProbabilityPT> words : partitions.values()) {
+					for (WordProbabilityPT wp : words.values()) {
+						sums.add(wp.getWord(), wp.getMatchingCount());
+					}
+				}
+			}
+			termTotals.put(category, sums);
 		}
-		data = input.readObject();
-		input.close();
-		return data;
+		return sums;
 	}
 
 	/**
-	 * Creates a writer for a given file. Detects whether the file is gzipped or not based
-	 * on whether the suffix contains ".gz". Writes the given object to the file.
+	 * Writes the given model to a file in the binary model format, gzip compressed if the
+	 * file name ends in ".gz". A file whose name ends in ".idx" is written in the indexed
+	 * format instead, to be opened lazily or mapped by a {@link MappedWordsDataSource}.
 	 * 
 	 * @param model The File in which the model is stored.
 	 * @throws IOException
+	 * @see BinaryModelFormat
+	 * @see IndexedModelFormat
 	 */
-	private void modelWriter(File f, Object data) throws IOException {
-
-		ObjectOutput out;
-		// XMLEncoder out;
-
-		// Serialize to a file
-		if (f.getName().endsWith(".gz")) {
-			// Log.warn(this, "Compressing model to " + f.getName());
-			out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(f)));
-			// out = new XMLEncoder(new GZIPOutputStream(new FileOutputStream(f)));
+	private void modelWriter(File f, HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> data)
+			throws IOException {
+		if (f.getName().endsWith(IndexedModelFormat.SUFFIX)) {
+			IndexedModelFormat.write(f, data);
 		} else {
-			out = new ObjectOutputStream(new FileOutputStream(f));
-			// out = new XMLEncoder(new FileOutputStream(f));
+			BinaryModelFormat.write(f, data);
 		}
-		out.writeObject(data);
-		out.close();
 	}
 
 	/**
@@ -200,6 +669,7 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 	@SuppressWarnings("rawtypes")
 	public WordProbabilityPT getWordProbability(String category, String partition, String word) {
 
+		require(category);
 		if (categories.containsKey(category)) {
 			HashMap partitions = categories.get(category);
 			if (partitions.containsKey(partition)) {
@@ -212,6 +682,25 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 		return null;
 	}
 
+	/**
+	 * Returns the word probabilities of the given terms in each of the given partitions,
+	 * resolving each partition once for all of the terms.
+	 */
+	public WordProbabilityPT[][] getWordProbabilities(String category, String[] partitions, String[] terms) {
+		require(category);
+		WordProbabilityPT[][] wps = new WordProbabilityPT[partitions.length][terms.length];
+		HashMap<String, HashMap<String, WordProbabilityPT>> parts = categories.get(category);
+		if (parts == null) return wps;
+		for (int p = 0; p < partitions.length; p++) {
+			HashMap<String, WordProbabilityPT> words = parts.get(partitions[p]);
+			if (words == null) continue;
+			for (int t = 0; t < terms.length; t++) {
+				wps[p][t] = words.get(terms[t]);
+			}
+		}
+		return wps;
+	}
+
 	/* old: P(Wj) = [Wj{Bi}/(Wj{S} - Wj{Bi})] [(E{S} - E{Bi})/ E{Bi}] */
 
 	/**
@@ -238,24 +727,26 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 	 * 
 	 * @param category the category to update
 	 * @param partition the label of the partition to update
-	 * @param totals the label of the reserved partition that contains the word term
-	 *            totals for the category.
+	 * @param totals the reserved label of the word term totals for the category; the
+	 *            totals are derived from the partitions rather than stored.
 	 * @param cnt
 	 * @param cntTotal
 	 */
 	@SuppressWarnings("rawtypes")
 	public void updateWordProbabilities(String category, String partition, String totals, int cnt, int cntTotal) {
+		checkMutable();
+		require(category);
+		decompile();
 		if (categories.containsKey(category)) {
 			HashMap partitions = categories.get(category);
-			if (partitions.containsKey(partition) && partitions.containsKey(totals)) {
+			if (partitions.containsKey(partition)) {
 				HashMap words = (HashMap) partitions.get(partition);
-				HashMap sums = (HashMap) partitions.get(totals);
+				TermCounts sums = termTotals(category);
 				for (Iterator it = words.keySet().iterator(); it.hasNext();) {
 					String word = (String) it.next();
 					WordProbabilityPT wp = (WordProbabilityPT) words.get(word);
-					WordProbabilityPT wps = (WordProbabilityPT) sums.get(word);
 					double mcnt = wp.getMatchingCount();
-					double tcnt = wps.getMatchingCount();
+					double tcnt = sums.get(word);
 					double A = mcnt / cnt;
 					double B = (tcnt - mcnt) / (cntTotal - cnt);
 					double ratio = A / (A + B);
@@ -273,16 +764,118 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 
 	/**
 	 * Add a matching word to the data source in the given partition of the given
-	 * category.
+	 * category. A match to the reserved totals partition is ignored, the totals being
+	 * derived from the other partitions.
 	 * 
 	 * @param category The category to be modified.
 	 * @param partition The partition to be modified.
 	 * @param word the word that matches
 	 */
 	public void addMatch(String category, String partition, String word) throws WordsDataSourceException {
+		MatchAccumulator acc = accumulator;
+		if (acc != null) {
+			if (!isTotals(partition)) acc.add(category, partition, word);
+			return;
+		}
+		add(category, partition, word, 1);
+	}
+
+	/**
+	 * Starts concurrent training. From then on, matches may be added by any number of
+	 * threads at once, as by concurrent calls of
+	 * {@link BayesPartitionClassifier#teachMatch(String, String, String)}, without
+	 * external locking. Each match is counted by a {@link MatchAccumulator} rather than in
+	 * the model; the counts accumulated are added to the model, and to any training log,
+	 * before the model is next read or saved. Other changes to the model are made one at a
+	 * time, as before.
+	 */
+	public synchronized void startConcurrentTraining() {
+		checkMutable();
+		if (accumulator == null) accumulator = new MatchAccumulator();
+	}
+
+	/**
+	 * Adds the matches accumulated to the model and stops concurrent training. Called
+	 * once every training thread has finished adding matches.
+	 */
+	public synchronized void stopConcurrentTraining() {
+		drain();
+		MatchAccumulator acc = accumulator;
+		accumulator = null;
+		if (acc != null) acc.clear();
+	}
+
+	public boolean isConcurrentTraining() {
+		return accumulator != null;
+	}
+
+	/* Adds any matches accumulated since last added; a volatile read when there are none. */
+	private void settle() {
+		MatchAccumulator acc = accumulator;
+		if (acc != null && acc.isDirty()) drain();
+	}
+
+	/* Adds the matches accumulated to the model, unless already doing so. */
+	private synchronized void drain() {
+		MatchAccumulator acc = accumulator;
+		if (acc == null || draining) return;
+		draining = true;
+		try {
+			acc.drain(sink);
+		} catch (WordsDataSourceException e) {
+			Log.error(this, "Failed to add accumulated matches", e);
+		} finally {
+			draining = false;
+		}
+	}
+
+	/**
+	 * Adds the matched word counts of another model to this one, as though the training
+	 * of the other model had been taught to this one. Used to reduce the partial models
+	 * of a parallel training; the word probabilities are left to be updated once every
+	 * partial model is merged. The other model is not changed.
+	 *
+	 * @param other the model to merge
+	 * @throws WordsDataSourceException if this model is read-only, or the training log
+	 *             cannot be written
+	 */
+	public void merge(PersistantWordsDataSource other) throws WordsDataSourceException {
+		other.loadAll();
+		for (Map.Entry<String, HashMap<String, HashMap<String, WordProbabilityPT>>> category : other.categories
+				.entrySet()) {
+			for (Map.Entry<String, HashMap<String, WordProbabilityPT>> partition : category.getValue().entrySet()) {
+				for (WordProbabilityPT wp : partition.getValue().values()) {
+					add(category.getKey(), partition.getKey(), wp.getWord(), wp.getMatchingCount());
+				}
+			}
+		}
+	}
+
+	/* Adds the given count delta to the matching count of a word, and logs it. */
+	private void add(String category, String partition, String word, long delta) throws WordsDataSourceException {
+		if (frozen) {
+			throw new WordsDataSourceException("Model is read-only");
+		}
+		if (isTotals(partition)) return;
+		addCount(category, partition, word, delta);
+		TrainingLog tl = log;
+		if (tl != null) {
+			try {
+				tl.append(category, partition, word, delta);
+			} catch (IOException e) {
+				throw new WordsDataSourceException("Training log failure: " + e.getMessage());
+			}
+			touched.add(category);
+		}
+	}
+
+	/* Adds the given count delta to the matching count of a word. */
+	private void addCount(String category, String partition, String word, long delta) {
 		HashMap<String, HashMap<String, WordProbabilityPT>> partitions;
 		HashMap<String, WordProbabilityPT> words;
 
+		require(category);
+		decompile();
 		if (categories.containsKey(category)) {
 			partitions = categories.get(category);
 			if (partitions.containsKey(partition)) {
@@ -300,11 +893,133 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 		WordProbabilityPT wp;
 		if (words.containsKey(word)) {
 			wp = words.get(word);
-			wp.setMatchingCount(wp.getMatchingCount() + 1);
+			wp.setMatchingCount(wp.getMatchingCount() + delta);
 		} else {
-			wp = new WordProbabilityPT(word, 1, 0);
+			wp = new WordProbabilityPT(word, delta, 0);
 			words.put(word, wp);
 		}
+		TermCounts sums = termTotals.get(category);
+		if (sums != null) sums.add(wp.getWord(), delta);
+	}
+
+	/**
+	 * Updates the word probabilities of every partition of the given category, taking the
+	 * matched word count of each partition as its training count. Used where the training
+	 * counts of the classifier are not at hand, as when training deltas are replayed.
+	 *
+	 * @param category the category to update
+	 * @param totals the reserved label of the word term totals for the category.
+	 */
+	public void updateWordProbabilities(String category, String totals) {
+		List<String> partitions = new LinkedList<String>(Arrays.asList(getPartitionNames(category)));
+		partitions.remove(totals);
+		if (partitions.isEmpty()) return;
+		int cntTotal = 0;
+		for (String partition : partitions) {
+			cntTotal += getMatchWordCount(category, partition);
+		}
+		for (String partition : partitions) {
+			updateWordProbabilities(category, partition, totals, getMatchWordCount(category, partition), cntTotal);
+		}
+	}
+
+	/*
+	 * Replays onto the model the deltas of the training log of the given model file that
+	 * the file does not include, then updates the probabilities of the categories
+	 * changed.
+	 */
+	private void replayLog(File f) throws IOException {
+		TrainingLog.Replay replay = TrainingLog.replay(f);
+		if (replay.isTorn()) Log.warn(this, "Ignoring torn tail of training log of " + f);
+		if (replay.isStale()) Log.warn(this, "Ignoring training log not based on " + f);
+		List<TrainingLog.Delta> deltas = replay.getDeltas();
+		if (deltas.isEmpty()) return;
+
+		Set<String> changed = new LinkedHashSet<String>();
+		for (TrainingLog.Delta d : deltas) {
+			// deltas to the totals partition, logged before the totals were derived
+			if (isTotals(d.partition)) continue;
+			addCount(d.category, d.partition, d.term, d.delta);
+			changed.add(d.category);
+		}
+		for (String category : changed) {
+			updateWordProbabilities(category, BayesPartitionClassifier.SPACE_TOTALS);
+		}
+		Log.info(this, "Replayed " + deltas.size() + " training deltas onto " + f);
+	}
+
+	/**
+	 * Starts logging the training of this model to the training log of the named model
+	 * file, which this model must have been read from. From then on, each match added is
+	 * appended to the log and written by the next {@link #commitLog()}, at a cost
+	 * proportional to the training rather than to the model. Saves of the model to the
+	 * named file become compactions of the log.
+	 *
+	 * @param modelName Canonical name of the model file.
+	 * @throws IOException if the log cannot be opened
+	 */
+	public synchronized void startLog(String modelName) throws IOException {
+		checkMutable();
+		closeLog();
+		File f = new File(modelName).getAbsoluteFile();
+		log = TrainingLog.open(f);
+		logModel = f;
+	}
+
+	/**
+	 * Writes the matches added since the last commit to the training log, and forces them
+	 * to disk. Once the log outgrows a quarter of the model file, it is compacted in the
+	 * background.
+	 *
+	 * @throws IOException if the log cannot be written
+	 */
+	public synchronized void commitLog() throws IOException {
+		if (log == null) return;
+		settle();
+		log.commit();
+		if (log.size() > Math.max(COMPACT_MIN_SIZE, logModel.length() / 4)
+				&& (compaction == null || compaction.isDone())) {
+			compaction = compactLog();
+		}
+	}
+
+	/**
+	 * Compacts the training log in the background: a snapshot of the model is saved as the
+	 * new checkpoint, and the log is rewritten to hold only the matches added since. The
+	 * word probabilities of the categories trained since the last compaction are updated
+	 * first.
+	 *
+	 * @return a future giving the saved model file, or the failure of the compaction.
+	 */
+	public synchronized Future<File> compactLog() {
+		if (log == null) throw new IllegalStateException("No training log");
+		return saveModelAsync(logModel.getPath(), null);
+	}
+
+	/**
+	 * Commits any matches added and stops logging, once any compaction in progress
+	 * completes.
+	 */
+	public synchronized void closeLog() throws IOException {
+		if (log == null) return;
+		try {
+			settle();
+			log.commit();
+			if (compaction != null) compaction.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.error(this, "Training log compaction failed", e.getCause());
+		} finally {
+			log.close();
+			log = null;
+			logModel = null;
+			compaction = null;
+		}
+	}
+
+	public boolean isLogging() {
+		return log != null;
 	}
 
 	/**
@@ -317,29 +1032,43 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 	 * @throws WordsDataSourceException
 	 */
 	public String[] getPartitionList(String category, String nonPublics) throws WordsDataSourceException {
+		require(category);
+		ConcurrentHashMap<String, String[]> cache = publicCache;
+		String key = category + "/" + nonPublics;
+		if (cache != null && cache.containsKey(key)) {
+			return cache.get(key);
+		}
 		String[] fullList = getPartitionList(category);
-		List<String> l = new LinkedList<String>(Arrays.asList(fullList));
+		List<String> l = fullList != null ? new LinkedList<String>(Arrays.asList(fullList))
+				: new LinkedList<String>();
 		String[] npa = nonPublics.split("\\s");
 		for (String element : npa) {
 			l.remove(element);
 		}
-		return l.toArray(new String[l.size()]);
+		String[] publicList = l.toArray(new String[l.size()]);
+		if (cache != null) cache.put(key, publicList);
+		return publicList;
 	}
 
 	/**
-	 * Produces an array listing of all of the partition labels, including for any
-	 * reserved partitions, that exist in the given category.
+	 * Produces an array listing of all of the partition labels that exist in the given
+	 * category. The reserved totals partition is derived, so is not listed.
 	 * 
 	 * @param category the category to check
-	 * @return an array containing the partition labels or null if either the category
-	 *         does not exist or there are not multiple partitions in the category.
+	 * @return an array containing the partition labels or null if the category does not
+	 *         exist or has no partitions.
 	 * @throws WordsDataSourceException
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public String[] getPartitionList(String category) throws WordsDataSourceException {
+		require(category);
+		HashMap<String, String[]> cache = partitionCache;
+		if (cache != null) {
+			return cache.get(category);
+		}
 		if (categories.containsKey(category)) {
 			HashMap partitions = categories.get(category);
-			if (partitions.size() > 1) {
+			if (!partitions.isEmpty()) {
 				String[] sa = new String[partitions.size()];
 				return (String[]) partitions.keySet().toArray(sa);
 			}
@@ -348,14 +1077,42 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 	}
 
 	/**
-	 * Returns the matched, not unique, word count for the given category. Since the
-	 * entire data set will be contained within a single partition, the word count total
-	 * corresponds to a total count of the samples within the sample space.
+	 * Returns a rough estimate, in bytes, of the heap occupied by the in-memory model, as
+	 * loaded so far. Used to budget the models held resident by the {@link ModelRegistry}.
+	 *
+	 * @return the estimated model size
+	 */
+	public long estimateSize() {
+		long size = 0;
+		for (HashMap<String, HashMap<String, WordProbabilityPT>> partitions : categories.values()) {
+			for (HashMap<String, WordProbabilityPT> words : partitions.values()) {
+				for (String word : words.keySet()) {
+					// map entry, term object, and key string
+					size += 160 + 2 * word.length();
+				}
+			}
+		}
+		for (TermCounts sums : termTotals.values()) {
+			// a slot pair per term, held at most half full
+			size += 24 * sums.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the matched, not unique, word count for the given category: the sum of the
+	 * matched word counts of its partitions.
 	 * 
 	 * @param category the category to search
 	 * @return a count of the matched words
 	 */
 	public int getMatchWordCount(String category) throws WordsDataSourceException {
+		require(category);
+		HashMap<String, Integer> cache = countCache;
+		if (cache != null) {
+			Integer cached = cache.get(category);
+			return cached != null ? cached.intValue() : 0;
+		}
 		int count = 0;
 		String[] partitionList = getPartitionList(category);
 		if (partitionList != null) {
@@ -375,19 +1132,24 @@ public class PersistantWordsDataSource implements IPartitionedWordsDataSource {
 	 * @param partition the partition to total
 	 * @return a count of the matched words
 	 */
-	@SuppressWarnings("rawtypes")
 	public int getMatchWordCount(String category, String partition) {
+		require(category);
+		HashMap<String, Integer> cache = countCache;
+		if (cache != null) {
+			Integer cached = cache.get(category + "/" + partition);
+			return cached != null ? cached.intValue() : 0;
+		}
+		HashMap<String, HashMap<String, WordProbabilityPT>> partitions = categories.get(category);
+		if (partitions != null && partitions.containsKey(partition)) {
+			return countMatches(partitions.get(partition));
+		}
+		return 0;
+	}
+
+	private static int countMatches(HashMap<String, WordProbabilityPT> words) {
 		int count = 0;
-		if (categories.containsKey(category)) {
-			HashMap partitions = categories.get(category);
-			if (partitions.containsKey(partition)) {
-				HashMap wordsMap = (HashMap) partitions.get(partition);
-				for (Iterator it = wordsMap.keySet().iterator(); it.hasNext();) {
-					String key = (String) it.next();
-					WordProbabilityPT wp = (WordProbabilityPT) wordsMap.get(key);
-					count += wp.getMatchingCount();
-				}
-			}
+		for (WordProbabilityPT wp : words.values()) {
+			count += wp.getMatchingCount();
 		}
 		return count;
 	}
@@ -19,6 +19,9 @@ import java.util.Arrays;
 
 import net.sf.classifier4J.IStopWordProvider;
 
+/**
+ * Stop word list read from a file. Immutable once constructed.
+ */
 public class StopWordFileProvider implements IStopWordProvider {
 
 	private File sourcefile;
@@ -47,6 +50,7 @@ public class StopWordFileProvider implements IStopWordProvider {
 		while ((word = reader.readLine()) != null) {
 			wordsLst.add(word.trim());
 		}
+		reader.close();
 		words = wordsLst.toArray(new String[wordsLst.size()]);
 		Arrays.sort(words);
 	}
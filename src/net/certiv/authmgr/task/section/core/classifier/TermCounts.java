@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+/**
+ * A count per term, held in a pair of parallel arrays: an open-addressing hash table of
+ * the terms, linearly probed and held at most half full, and the primitive counts of the
+ * terms. Costs a reference and a long per slot, rather than a map entry and a word
+ * probability per term. Not thread-safe.
+ *
+ * @author Gbr
+ */
+class TermCounts {
+
+	private String[] terms;
+	private long[] counts;
+	private int size;
+
+	TermCounts() {
+		this(16);
+	}
+
+	TermCounts(int expected) {
+		int slots = 16;
+		while (slots < expected * 2) {
+			slots <<= 1;
+		}
+		terms = new String[slots];
+		counts = new long[slots];
+	}
+
+	/**
+	 * Returns the count of the given term; 0 if the term has none.
+	 */
+	long get(String term) {
+		int mask = terms.length - 1;
+		for (int idx = spread(term.hashCode()) & mask;; idx = (idx + 1) & mask) {
+			String t = terms[idx];
+			if (t == null) return 0;
+			if (t.equals(term)) return counts[idx];
+		}
+	}
+
+	/**
+	 * Adds the given delta to the count of the given term.
+	 */
+	void add(String term, long delta) {
+		int mask = terms.length - 1;
+		int idx = spread(term.hashCode()) & mask;
+		for (String t; (t = terms[idx]) != null; idx = (idx + 1) & mask) {
+			if (t.equals(term)) {
+				counts[idx] += delta;
+				return;
+			}
+		}
+		terms[idx] = term;
+		counts[idx] = delta;
+		if (++size * 2 > terms.length) grow();
+	}
+
+	/**
+	 * Returns the number of terms counted.
+	 */
+	int size() {
+		return size;
+	}
+
+	private void grow() {
+		String[] oldTerms = terms;
+		long[] oldCounts = counts;
+		terms = new String[oldTerms.length * 2];
+		counts = new long[oldTerms.length * 2];
+		int mask = terms.length - 1;
+		for (int old = 0; old < oldTerms.length; old++) {
+			if (oldTerms[old] == null) continue;
+			int idx = spread(oldTerms[old].hashCode()) & mask;
+			while (terms[idx] != null) {
+				idx = (idx + 1) & mask;
+			}
+			terms[idx] = oldTerms[old];
+			counts[idx] = oldCounts[old];
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,422 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.core.classifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import net.certiv.authmgr.app.util.Log;
+
+/**
+ * An append-only log of the training deltas applied to a model since its last
+ * checkpoint, the model file itself. The log is kept beside the model file, under the
+ * model name with a <code>.log</code> suffix. All values are big-endian.
+ *
+ * <pre>
+ * header:    magic "NBYL", u16 version, u16 flags, u32 base checkpoint CRC, u64 first sequence
+ * frames:    u32 payload length, u32 CRC32 of the payload, then the payload records:
+ *              1 partition: varint id, string category, string partition
+ *              2 term:      varint id, string term
+ *              3 delta:     varint partition id, varint term id, varint count delta
+ *              4 marker:    u32 checkpoint CRC, varint sequence
+ * </pre>
+ *
+ * Partitions and terms are named once per log and referred to by id thereafter, so a
+ * delta is typically three bytes. Deltas are numbered in sequence, continuing across
+ * compactions. Strings are a varint byte length and UTF-8 bytes; varints are zig-zag
+ * encoded as in the {@link BinaryModelFormat}.
+ * <p>
+ * Each commit is one frame, forced to disk before the commit returns; a frame torn by a
+ * crash fails its checksum and ends the log. A log applies to the checkpoint whose
+ * header CRC is its base. To compact, a new checkpoint is written to a temporary file and
+ * a marker, naming that checkpoint and the first delta it does not include, is committed
+ * before the checkpoint is renamed into place; the log is then rewritten on the new
+ * base, keeping only the later deltas. A crash at any point thus leaves a log that
+ * replays onto whichever checkpoint is in place exactly the deltas it lacks.
+ *
+ * @author Gbr
+ */
+public class TrainingLog {
+
+	public static final String SUFFIX = ".log";
+	public static final byte[] MAGIC = { 'N', 'B', 'Y', 'L' };
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 20;
+
+	private static final int PARTITION = 1;
+	private static final int TERM = 2;
+	private static final int DELTA = 3;
+	private static final int MARKER = 4;
+
+	/**
+	 * A count delta to a term of a partition.
+	 */
+	public static class Delta {
+
+		public final String category;
+		public final String partition;
+		public final String term;
+		public final long delta;
+
+		Delta(String category, String partition, String term, long delta) {
+			this.category = category;
+			this.partition = partition;
+			this.term = term;
+			this.delta = delta;
+		}
+	}
+
+	private final File file;
+	private FileChannel channel;
+	private long nextSeq;
+
+	/** ids assigned in the current log file */
+	private final HashMap<String, Integer> partitionIds = new HashMap<String, Integer>();
+	private final HashMap<String, Integer> termIds = new HashMap<String, Integer>();
+	/** records appended since the last commit */
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private DataOutputStream out = new DataOutputStream(bytes);
+
+	private TrainingLog(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the log file of the given model file.
+	 */
+	public static File logFile(File model) {
+		return new File(model.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Returns whether the given model file has a log holding any records.
+	 */
+	public static boolean hasLog(File model) {
+		return logFile(model).length() > HEADER_SIZE;
+	}
+
+	/**
+	 * Returns the deltas of the log of the given model file that the model file does not
+	 * include, in the order logged. Reading stops at the first torn or corrupt frame.
+	 *
+	 * @param model the checkpoint model file
+	 * @return the deltas to replay; none if there is no log or it does not apply
+	 * @throws IOException if the log or model header cannot be read
+	 */
+	public static Replay replay(File model) throws IOException {
+		File f = logFile(model);
+		if (!f.isFile()) return new Replay();
+		return read(f, BinaryModelFormat.readChecksum(model));
+	}
+
+	/**
+	 * Opens the log of the given model file for appending. The log is first rewritten on
+	 * the current checkpoint, holding only the deltas given by {@link #replay(File)};
+	 * the model appended to must hold exactly the checkpoint and those deltas.
+	 *
+	 * @param model the checkpoint model file
+	 * @return the open log
+	 * @throws IOException if the log cannot be rewritten
+	 */
+	public static TrainingLog open(File model) throws IOException {
+		File f = logFile(model);
+		int crc = BinaryModelFormat.readChecksum(model);
+		TrainingLog log = new TrainingLog(f);
+		if (f.isFile()) {
+			Replay contents = read(f, crc);
+			log.rewrite(crc, contents.nextSeq - contents.deltas.size(), contents.deltas);
+		} else {
+			log.rewrite(crc, 0, new ArrayList<Delta>());
+		}
+		return log;
+	}
+
+	/**
+	 * Appends a delta, to be written by the next commit.
+	 */
+	public synchronized void append(String category, String partition, String term, long delta)
+			throws IOException {
+		if (channel == null) throw new IOException("Training log is closed: " + file);
+		record(category, partition, term, delta);
+	}
+
+	/**
+	 * Writes the deltas appended since the last commit as a single frame, and forces it to
+	 * disk. On failure the log is closed; the model must then be reloaded to continue.
+	 */
+	public synchronized void commit() throws IOException {
+		if (bytes.size() == 0) return;
+		if (channel == null) throw new IOException("Training log is closed: " + file);
+		byte[] payload = bytes.toByteArray();
+		bytes.reset();
+		try {
+			writeFrame(channel, payload);
+			channel.force(false);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the sequence number the next delta will take; deltas numbered below it have
+	 * been appended.
+	 */
+	public synchronized long getSequence() {
+		return nextSeq;
+	}
+
+	/**
+	 * Returns the size, in bytes, of the log file.
+	 */
+	public synchronized long size() throws IOException {
+		return channel != null ? channel.size() : file.length();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void close() {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Log.warn(this, "Failed to close training log " + file);
+		}
+		channel = null;
+	}
+
+	/*
+	 * Commits a marker recording that the checkpoint with the given CRC holds every delta
+	 * numbered below the given sequence. Called before the checkpoint is put in place.
+	 */
+	synchronized void mark(int checkpointCrc, long seq) throws IOException {
+		commit();
+		out.writeByte(MARKER);
+		out.writeInt(checkpointCrc);
+		BinaryModelFormat.writeVarLong(out, seq);
+		commit();
+	}
+
+	/*
+	 * Rewrites the log on the checkpoint with the given CRC, now in place, keeping only
+	 * the deltas numbered from the given sequence.
+	 */
+	synchronized void rebase(int checkpointCrc, long seq) throws IOException {
+		commit();
+		Replay contents = read(file, checkpointCrc);
+		if (contents.nextSeq - contents.deltas.size() != seq) {
+			throw new IOException("Training log does not continue from checkpoint: " + file);
+		}
+		rewrite(checkpointCrc, seq, contents.deltas);
+	}
+
+	/* Atomically replaces the log file, then opens it for appending. */
+	private void rewrite(int crc, long firstSeq, List<Delta> deltas) throws IOException {
+		close();
+		partitionIds.clear();
+		termIds.clear();
+		bytes = new ByteArrayOutputStream();
+		out = new DataOutputStream(bytes);
+		nextSeq = firstSeq;
+		for (Delta d : deltas) {
+			record(d.category, d.partition, d.term, d.delta);
+		}
+		byte[] payload = bytes.toByteArray();
+		bytes.reset();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+		try {
+			FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.put(MAGIC).putShort((short) VERSION).putShort((short) 0).putInt(crc).putLong(firstSeq);
+				header.flip();
+				while (header.hasRemaining()) {
+					ch.write(header);
+				}
+				if (payload.length > 0) writeFrame(ch, payload);
+				ch.force(true);
+			} finally {
+				ch.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private void record(String category, String partition, String term, long delta) throws IOException {
+		String key = category + "/" + partition;
+		Integer pid = partitionIds.get(key);
+		if (pid == null) {
+			pid = partitionIds.size();
+			partitionIds.put(key, pid);
+			out.writeByte(PARTITION);
+			BinaryModelFormat.writeVarLong(out, pid);
+			writeString(out, category);
+			writeString(out, partition);
+		}
+		Integer tid = termIds.get(term);
+		if (tid == null) {
+			tid = termIds.size();
+			termIds.put(term, tid);
+			out.writeByte(TERM);
+			BinaryModelFormat.writeVarLong(out, tid);
+			writeString(out, term);
+		}
+		out.writeByte(DELTA);
+		BinaryModelFormat.writeVarLong(out, pid);
+		BinaryModelFormat.writeVarLong(out, tid);
+		BinaryModelFormat.writeVarLong(out, delta);
+		nextSeq++;
+	}
+
+	private static void writeFrame(FileChannel ch, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+		frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+		frame.flip();
+		while (frame.hasRemaining()) {
+			ch.write(frame);
+		}
+	}
+
+	/**
+	 * The deltas of a log that a checkpoint does not include.
+	 */
+	public static class Replay {
+
+		final List<Delta> deltas = new ArrayList<Delta>();
+		long nextSeq;
+		boolean torn;
+		boolean stale;
+
+		/**
+		 * Returns the deltas to replay, in the order logged.
+		 */
+		public List<Delta> getDeltas() {
+			return deltas;
+		}
+
+		/**
+		 * Returns whether the log ended in a torn or corrupt frame, which was ignored.
+		 */
+		public boolean isTorn() {
+			return torn;
+		}
+
+		/**
+		 * Returns whether the log held deltas for some other checkpoint, which were
+		 * ignored.
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+	}
+
+	/*
+	 * Reads the log, returning the deltas that the checkpoint with the given CRC does not
+	 * hold: those following the last marker naming the checkpoint or, failing that, all
+	 * of them if the log is based on the checkpoint, or else none.
+	 */
+	private static Replay read(File f, int checkpointCrc) throws IOException {
+		byte[] data = Files.readAllBytes(f.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		if (buf.remaining() < HEADER_SIZE) throw new IOException("Not a training log: too short: " + f);
+		for (byte b : MAGIC) {
+			if (buf.get() != b) throw new IOException("Not a training log: bad magic number: " + f);
+		}
+		int version = buf.getShort() & 0xffff;
+		if (version != VERSION) throw new IOException("Unsupported training log version " + version);
+		buf.getShort(); // flags
+		int base = buf.getInt();
+		long seq = buf.getLong();
+
+		HashMap<Integer, String[]> partitions = new HashMap<Integer, String[]>();
+		HashMap<Integer, String> terms = new HashMap<Integer, String>();
+		List<Delta> deltas = new ArrayList<Delta>();
+		long firstSeq = seq;
+		long from = base == checkpointCrc ? seq : Long.MAX_VALUE;
+
+		while (buf.remaining() >= 8) {
+			int length = buf.getInt();
+			int expected = buf.getInt();
+			if (length < 0 || length > buf.remaining()) break;
+			CRC32 crc = new CRC32();
+			crc.update(data, buf.position(), length);
+			if ((int) crc.getValue() != expected) break;
+
+			ByteBuffer payload = ByteBuffer.wrap(data, buf.position(), length).slice();
+			buf.position(buf.position() + length);
+			while (payload.hasRemaining()) {
+				int type = payload.get();
+				if (type == PARTITION) {
+					int id = (int) BinaryModelFormat.readVarLong(payload);
+					partitions.put(id, new String[] { readString(payload), readString(payload) });
+				} else if (type == TERM) {
+					int id = (int) BinaryModelFormat.readVarLong(payload);
+					terms.put(id, readString(payload));
+				} else if (type == DELTA) {
+					String[] p = partitions.get((int) BinaryModelFormat.readVarLong(payload));
+					String term = terms.get((int) BinaryModelFormat.readVarLong(payload));
+					long delta = BinaryModelFormat.readVarLong(payload);
+					if (p == null || term == null) throw new IOException("Undefined id in training log: " + f);
+					deltas.add(new Delta(p[0], p[1], term, delta));
+					seq++;
+				} else if (type == MARKER) {
+					int marked = payload.getInt();
+					long markSeq = BinaryModelFormat.readVarLong(payload);
+					if (marked == checkpointCrc) from = markSeq;
+				} else {
+					throw new IOException("Unknown record type " + type + " in training log: " + f);
+				}
+			}
+		}
+		Replay contents = new Replay();
+		contents.nextSeq = seq;
+		contents.torn = buf.hasRemaining();
+		if (from == Long.MAX_VALUE) {
+			contents.stale = !deltas.isEmpty();
+			from = seq;
+		}
+		for (int idx = (int) Math.max(0, from - firstSeq); idx < deltas.size(); idx++) {
+			contents.deltas.add(deltas.get(idx));
+		}
+		return contents;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+		BinaryModelFormat.writeVarLong(out, utf.length);
+		out.write(utf);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		return BinaryModelFormat.readString(buf, (int) BinaryModelFormat.readVarLong(buf));
+	}
+}
@@ -80,6 +80,19 @@ public class WordProbabilityPT implements Comparable<WordProbabilityPT>, Seriali
 		setNonMatchingCount(nonMatchingCount);
 	}
 
+	/**
+	 * Creates a copy of the given word probability.
+	 */
+	public WordProbabilityPT(WordProbabilityPT wp) {
+		word = wp.word;
+		category = wp.category;
+		matchingCount = wp.matchingCount;
+		nonMatchingCount = wp.nonMatchingCount;
+		trainingPartition = wp.trainingPartition;
+		trainingCategory = wp.trainingCategory;
+		probability = wp.probability;
+	}
+
 	public void setWord(String w) {
 		this.word = w;
 	}
@@ -11,9 +11,11 @@
 package net.certiv.authmgr.task.section.model;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -37,14 +39,27 @@ public class AnalyzeModel {
 
 	public void doAnalysis() {
 		String modelName = Prefs.getString(PrefsKey.CUR_CLASSIFY);// generatedClassify;
-		PersistantWordsDataSource pds = new PersistantWordsDataSource();
-		HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> categories = pds.loadModel(modelName);
-		analyzeCategories(pds, categories);
+		PersistantWordsDataSource pds = new PersistantWordsDataSource(modelName);
+		analyzeCategories(pds);
 	}
 
-	private void analyzeCategories(PersistantWordsDataSource pds,
-			HashMap<String, HashMap<String, HashMap<String, WordProbabilityPT>>> catsMap) {
-		Set<String> catKeys = catsMap.keySet();
+	/**
+	 * Analyzes a single partition of the current model. Where the model file is indexed,
+	 * only that partition is loaded.
+	 */
+	public void analyzePartition(String category, String partition) {
+		String modelName = Prefs.getString(PrefsKey.CUR_CLASSIFY);
+		PersistantWordsDataSource pds = new PersistantWordsDataSource(modelName);
+		HashMap<String, WordProbabilityPT> wordsMap = pds.getWords(category, partition);
+		if (wordsMap == null) {
+			Log.warn(this, "No partition " + category + ":" + partition + " in " + modelName);
+			return;
+		}
+		analyzeWords(category, partition, wordsMap);
+	}
+
+	private void analyzeCategories(PersistantWordsDataSource pds) {
+		Set<String> catKeys = new LinkedHashSet<String>(Arrays.asList(pds.getCategoryList()));
 
 		String categoryLabels = "";
 		for (Iterator<String> it = catKeys.iterator(); it.hasNext();) {
@@ -55,7 +70,10 @@ public class AnalyzeModel {
 		// for each category
 		for (Iterator<String> it = catKeys.iterator(); it.hasNext();) {
 			String category = it.next();
-			HashMap<String, HashMap<String, WordProbabilityPT>> partsMap = catsMap.get(category);
+			HashMap<String, HashMap<String, WordProbabilityPT>> partsMap = new HashMap<String, HashMap<String, WordProbabilityPT>>();
+			for (String partition : pds.getPartitionNames(category)) {
+				partsMap.put(partition, pds.getWords(category, partition));
+			}
 			analyzePartitions(pds, category, partsMap);
 		}
 	}
@@ -0,0 +1,452 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.certiv.authmgr.app.util.Log;
+import net.certiv.authmgr.task.section.core.ClassifySections;
+import net.certiv.authmgr.task.section.core.SectionSettings;
+import net.certiv.authmgr.task.section.core.classifier.BTreeWordsDataSource;
+import net.certiv.authmgr.task.section.core.classifier.BayesPartitionClassifier;
+import net.certiv.authmgr.task.section.core.classifier.CombinedTokenFilter;
+import net.certiv.authmgr.task.section.core.classifier.IPartitionedWordsDataSource;
+import net.certiv.authmgr.task.section.core.classifier.PersistantWordsDataSource;
+import net.sf.classifier4J.bayesian.WordsDataSourceException;
+
+/**
+ * Trains a section classification model from training files, independent of the
+ * workbench. Each line of a training file holds a partition name and the classifier
+ * ready message to teach for that partition, separated by white space.
+ * <p>
+ * A new heap model may be trained on several threads, each teaching chunks of the
+ * training lines to a partial model of its own; the partial models are then merged. The
+ * time spent reading and teaching the training lines, and in assigning the word
+ * probabilities, is recorded for reporting.
+ *
+ * @author Gbr
+ */
+public class ModelTrainer {
+
+	/** marks the end of the training lines to each training thread */
+	private static final List<String> END = new ArrayList<String>();
+
+	private final CombinedTokenFilter tok;
+	private int threads = 1;
+	private int chunkLines = SectionSettings.getTrainChunkLines();
+
+	private int files;
+	private int lines;
+	private int minLength;
+	private int maxLength;
+	private long teachNanos;
+	private long updateNanos;
+
+	/**
+	 * @param stopWords the stop words list file
+	 * @throws IOException if the stop words list cannot be read
+	 */
+	public ModelTrainer(String stopWords) throws IOException {
+		this.tok = new CombinedTokenFilter(stopWords);
+	}
+
+	/**
+	 * Lists the training files of the given directory: the files whose name starts with
+	 * the given pattern, in name order.
+	 */
+	public static File[] listTrainingFiles(File dir, final String namePattern) throws IOException {
+		File[] files = dir.listFiles(new FileFilter() {
+
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().startsWith(namePattern);
+			}
+		});
+		if (files == null) throw new IOException("Not a directory: " + dir);
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Sets the number of threads training a new heap model; 1, the default, trains
+	 * sequentially. Each thread builds a partial model of its own, so the peak heap of
+	 * training grows with the threads, up to their number times that of the model.
+	 * Incremental training, and training of a given model, is sequential.
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Trains a new model from the given training files, in parallel if more than one
+	 * thread is set.
+	 *
+	 * @return the trained model, with its word probabilities assigned
+	 * @throws IOException if a training file cannot be read
+	 * @throws WordsDataSourceException if the model cannot be taught
+	 */
+	public PersistantWordsDataSource train(File[] trainingFiles) throws IOException, WordsDataSourceException {
+		if (threads > 1) return trainParallel(trainingFiles);
+		PersistantWordsDataSource pds = new PersistantWordsDataSource();
+		train(pds, trainingFiles);
+		return pds;
+	}
+
+	/*
+	 * Trains a new model on the set number of threads. The lines of the training files are
+	 * read in chunks, and each thread teaches the chunks it takes to a partial model of its
+	 * own, so the threads share no counts. The partial models are then merged, and the
+	 * word probabilities assigned from the merged counts; the counts, and so the model,
+	 * are those of a sequential training.
+	 */
+	private PersistantWordsDataSource trainParallel(File[] trainingFiles) throws IOException,
+			WordsDataSourceException {
+		files = 0;
+		lines = 0;
+		minLength = 100;
+		maxLength = 1;
+		long start = System.nanoTime();
+		BlockingQueue<List<String>> chunks = new ArrayBlockingQueue<List<String>>(2 * threads);
+		ExecutorService exec = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private int n;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Model trainer " + (++n));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		List<Future<Partial>> partials = new ArrayList<Future<Partial>>();
+		PersistantWordsDataSource pds = null;
+		try {
+			for (int idx = 0; idx < threads; idx++) {
+				partials.add(exec.submit(new Partial(tok, chunks)));
+			}
+			for (File bcFile : trainingFiles) {
+				Log.info(this, "File: " + bcFile.getPath());
+				BufferedReader in = new BufferedReader(new FileReader(bcFile));
+				try {
+					int count = 0;
+					List<String> chunk = new ArrayList<String>(chunkLines);
+					String str;
+					while ((str = in.readLine()) != null) {
+						chunk.add(str);
+						count++;
+						if (chunk.size() == chunkLines) {
+							put(chunks, chunk, partials);
+							chunk = new ArrayList<String>(chunkLines);
+						}
+					}
+					if (!chunk.isEmpty()) put(chunks, chunk, partials);
+					Log.info(this, "" + count);
+				} finally {
+					in.close();
+				}
+				files++;
+			}
+			for (int idx = 0; idx < threads; idx++) {
+				put(chunks, END, partials);
+			}
+
+			// reduce the partial models into the first
+			for (Future<Partial> future : partials) {
+				Partial partial = future.get();
+				lines += partial.lines;
+				minLength = Math.min(minLength, partial.minLength);
+				maxLength = Math.max(maxLength, partial.maxLength);
+				if (pds == null) {
+					pds = partial.model;
+				} else {
+					pds.merge(partial.model);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Training interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof WordsDataSourceException) throw (WordsDataSourceException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException("Training failed", cause);
+		} finally {
+			exec.shutdownNow();
+		}
+		teachNanos = System.nanoTime() - start;
+		Log.info(this, "Min/Max training lengths: " + minLength + ":" + maxLength);
+
+		// the training counts of a partition are its matched word count
+		start = System.nanoTime();
+		pds.updateWordProbabilities(ClassifySections.categoryFixed, BayesPartitionClassifier.SPACE_TOTALS);
+		updateNanos = System.nanoTime() - start;
+		return pds;
+	}
+
+	/* Queues a chunk of lines, failing rather than waiting on a failed training thread. */
+	private static void put(BlockingQueue<List<String>> chunks, List<String> chunk, List<Future<Partial>> partials)
+			throws InterruptedException, ExecutionException {
+		while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+			for (Future<Partial> partial : partials) {
+				if (partial.isDone()) partial.get();
+			}
+		}
+	}
+
+	/**
+	 * Trains the given model, typically empty, from the given training files. The model
+	 * may be of any backend, as a {@link BTreeWordsDataSource} for models larger than the
+	 * heap.
+	 *
+	 * @throws IOException if a training file cannot be read
+	 * @throws WordsDataSourceException if the model cannot be taught
+	 */
+	public void train(IPartitionedWordsDataSource model, File[] trainingFiles) throws IOException,
+			WordsDataSourceException {
+		BayesPartitionClassifier classifier = new BayesPartitionClassifier(model, tok);
+
+		files = 0;
+		lines = 0;
+		minLength = 100;
+		maxLength = 1;
+		long start = System.nanoTime();
+		classifier.initTrainingCount();
+		for (File bcFile : trainingFiles) {
+			teach(classifier, bcFile);
+		}
+		teachNanos = System.nanoTime() - start;
+		Log.info(this, "Min/Max training lengths: " + minLength + ":" + maxLength);
+
+		// assign word term probabilities to complete the training
+		start = System.nanoTime();
+		classifier.updateWordProbabilites(ClassifySections.categoryFixed);
+		updateNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Trains a new model held on disk, as a {@link BTreeWordsDataSource}, from the given
+	 * training files. The tree is built in a new file beside the model file and renamed
+	 * over it only once trained and flushed, keeping any existing model under the backup
+	 * name. A failed training thus leaves the existing model as it was, rather than a
+	 * partly trained tree.
+	 *
+	 * @param modelName the model file to replace
+	 * @param backupName the file to keep any existing model as, or null
+	 * @return the model file
+	 * @throws IOException if a training file cannot be read or the model cannot be written
+	 * @throws WordsDataSourceException if the model cannot be taught
+	 */
+	public File trainTree(String modelName, String backupName, File[] trainingFiles) throws IOException,
+			WordsDataSourceException {
+		File target = new File(modelName).getAbsoluteFile();
+		File tmp = File.createTempFile(target.getName() + ".", ".tmp", target.getParentFile());
+		try {
+			BTreeWordsDataSource bt = BTreeWordsDataSource.open(tmp);
+			try {
+				train(bt, trainingFiles);
+			} finally {
+				bt.close();
+			}
+			if (backupName != null && target.exists()) {
+				Files.copy(target.toPath(), new File(backupName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+		return target;
+	}
+
+	/**
+	 * Trains an existing model incrementally from the given training files. The matches
+	 * taught are appended to the training log of the model, committed after each file,
+	 * rather than the whole of the model being saved; the log is compacted into the model
+	 * in the background as it grows, and once more on completion.
+	 *
+	 * @param modelName the model file to update
+	 * @return the updated model, with its word probabilities assigned
+	 * @throws IOException if a training file cannot be read or the log cannot be written
+	 * @throws WordsDataSourceException if the model cannot be taught
+	 */
+	public PersistantWordsDataSource update(String modelName, File[] trainingFiles) throws IOException,
+			WordsDataSourceException {
+		PersistantWordsDataSource pds;
+		try {
+			pds = PersistantWordsDataSource.readModel(modelName);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Not a model: " + modelName, e);
+		}
+		BayesPartitionClassifier classifier = new BayesPartitionClassifier(pds, tok);
+
+		files = 0;
+		lines = 0;
+		minLength = 100;
+		maxLength = 1;
+		long start = System.nanoTime();
+		classifier.initTrainingCount();
+		pds.startLog(modelName);
+		try {
+			for (File bcFile : trainingFiles) {
+				teach(classifier, bcFile);
+				pds.commitLog();
+			}
+			teachNanos = System.nanoTime() - start;
+
+			// the compaction assigns the word probabilities from the updated counts
+			start = System.nanoTime();
+			pds.compactLog().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compact training log of " + modelName, e.getCause());
+		} finally {
+			pds.closeLog();
+		}
+		updateNanos = System.nanoTime() - start;
+		return pds;
+	}
+
+	/* Teaches the lines of one training file. */
+	private void teach(BayesPartitionClassifier classifier, File bcFile) throws IOException,
+			WordsDataSourceException {
+		Log.info(this, "File: " + bcFile.getPath());
+		BufferedReader in = new BufferedReader(new FileReader(bcFile));
+		try {
+			int count = 0;
+			String str;
+			while ((str = in.readLine()) != null) {
+				if (count % 15 == 0) {
+					Log.info(this, "" + count);
+				}
+				int length = teachLine(classifier, str);
+				if (length < 0) continue;
+				count++;
+				if (length > maxLength) maxLength = length;
+				if (length < minLength) minLength = length;
+			}
+			Log.info(this, "" + count);
+			lines += count;
+		} finally {
+			in.close();
+		}
+		files++;
+	}
+
+	/* Teaches one training line; returns its length in words, or -1 if not a training line. */
+	private static int teachLine(BayesPartitionClassifier classifier, String str) throws WordsDataSourceException {
+		// pick apart the training to get the partition name
+		String[] training = str.split("\\s", 2);
+		if (training.length < 2) return -1;
+		classifier.teachMatch(ClassifySections.categoryFixed, training[0], training[1]);
+		return training[1].split("\\s").length;
+	}
+
+	/*
+	 * A partial model taught, by one thread of a parallel training, the chunks of lines
+	 * the thread takes, with the statistics of those lines.
+	 */
+	private static class Partial implements Callable<Partial> {
+
+		final PersistantWordsDataSource model = new PersistantWordsDataSource();
+		final CombinedTokenFilter tok;
+		final BlockingQueue<List<String>> chunks;
+		int lines;
+		int minLength = 100;
+		int maxLength = 1;
+
+		Partial(CombinedTokenFilter tok, BlockingQueue<List<String>> chunks) {
+			this.tok = tok;
+			this.chunks = chunks;
+		}
+
+		public Partial call() throws Exception {
+			BayesPartitionClassifier classifier = new BayesPartitionClassifier(model, tok);
+			classifier.initTrainingCount();
+			for (List<String> chunk = chunks.take(); chunk != END; chunk = chunks.take()) {
+				for (String str : chunk) {
+					int length = teachLine(classifier, str);
+					if (length < 0) continue;
+					lines++;
+					if (length > maxLength) maxLength = length;
+					if (length < minLength) minLength = length;
+				}
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Saves the model as the current model in the background, keeping any existing
+	 * current model under the backup name. The current model is replaced atomically.
+	 *
+	 * @return a future giving the saved file, or the failure of the save
+	 * @see PersistantWordsDataSource#saveModelAsync(String, String)
+	 */
+	public static Future<File> save(PersistantWordsDataSource pds, String currentModel, String backupModel) {
+		return pds.saveModelAsync(currentModel, backupModel);
+	}
+
+	public CombinedTokenFilter getTokenFilter() {
+		return tok;
+	}
+
+	public int getFileCount() {
+		return files;
+	}
+
+	public int getLineCount() {
+		return lines;
+	}
+
+	public int getMinLength() {
+		return minLength;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Returns the time spent reading and teaching the training lines.
+	 */
+	public long getTeachNanos() {
+		return teachNanos;
+	}
+
+	/**
+	 * Returns the time spent assigning the word probabilities.
+	 */
+	public long getUpdateNanos() {
+		return updateNanos;
+	}
+}
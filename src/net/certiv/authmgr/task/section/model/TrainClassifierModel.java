@@ -10,19 +10,15 @@
  *******************************************************************************/
 package net.certiv.authmgr.task.section.model;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 import net.certiv.authmgr.app.preferences.Prefs;
 import net.certiv.authmgr.app.preferences.PrefsKey;
 import net.certiv.authmgr.app.util.Log;
-import net.certiv.authmgr.task.section.core.ClassifySections;
-import net.certiv.authmgr.task.section.core.classifier.BayesPartitionClassifier;
-import net.certiv.authmgr.task.section.core.classifier.CombinedTokenFilter;
+import net.certiv.authmgr.task.section.core.SectionSettings;
 import net.certiv.authmgr.task.section.core.classifier.PersistantWordsDataSource;
 import net.sf.classifier4J.bayesian.WordsDataSourceException;
 
@@ -71,90 +67,55 @@ public class TrainClassifierModel {
 
 		Log.info(this, "Training BC Model");
 
-		// filter specifically for BC training files
-		FileFilter fileFilter = new FileFilter() {
-
-			public boolean accept(File file) {
-				String name = file.getName();
-				return file.isFile() && name.startsWith(nameBCPattern);
-			}
-		};
-
-		// List of filtered files as input
-		File f = new File(projectDir);
-		File[] files = f.listFiles(fileFilter);
+		File[] files;
+		try {
+			files = ModelTrainer.listTrainingFiles(new File(projectDir), nameBCPattern);
+		} catch (IOException e) {
+			MessageDialog.openError(parent, title, "Failed to list data files");
+			return;
+		}
 		Log.info(this, "Training on " + files.length + " files.");
 
-		// Create the classifier
-		CombinedTokenFilter tok;
+		// Create the trainer
+		ModelTrainer trainer;
 		try {
-			tok = new CombinedTokenFilter(stopWords);
+			trainer = new ModelTrainer(stopWords);
 		} catch (IOException e) {
 			MessageDialog.openError(parent, title, "Failed to read StopWordsList");
 			return;
 		}
-		PersistantWordsDataSource pds = new PersistantWordsDataSource();
-		BayesPartitionClassifier classifier = new BayesPartitionClassifier(pds, tok);
+		trainer.setThreads(SectionSettings.getTrainThreads());
+		Log.info(this, "Training on " + trainer.getThreads() + " threads.");
 
+		// Process files through the classifier to generate the Model
+		PersistantWordsDataSource pds;
 		try {
-			// Process files through the classifier to generate the Model
-			int minLength = 100;
-			int maxLength = 1;
-			classifier.initTrainingCount();
-			for (File bcFile : files) { // int idx = 0; idx < files.length; idx++) {
-				Log.info(this, "File: " + bcFile.getPath());
-
-				try {
-					BufferedReader in = new BufferedReader(new FileReader(bcFile));
-					String str;
-					int count = 0;
-					while ((str = in.readLine()) != null) {
-						if (count % 15 == 0) {
-							Log.info(this, "" + count);
-						}
-						// pick apart the training to get the partition name
-						String[] training = str.split("\\s", 2);
-						classifier.teachMatch(ClassifySections.categoryFixed, training[0], training[1]);
-						count++;
-						String[] counts = training[1].split("\\s");
-						if (counts.length > maxLength) {
-							maxLength = counts.length;
-						}
-						if (counts.length < minLength) {
-							minLength = counts.length;
-						}
-					}
-					Log.info(this, "" + count);
-					in.close();
-					// if (i >= 0) break; // cut short training for testing
-				} catch (FileNotFoundException e) {
-					MessageDialog.openError(parent, title, "Failed to open data file");
-					Log.error(this, "Failed to find data file", e);
-					return;
-				} catch (IOException e) {
-					MessageDialog.openError(parent, title, "Failed to read data file");
-					Log.error(this, "Failed to read data file", e);
-					return;
-				}
-			}
-			Log.info(this, "Min/Max training lengths: " + minLength + ":" + maxLength);
-			// assign word term probabilities to complete the training
-			classifier.updateWordProbabilites(ClassifySections.categoryFixed);
+			pds = trainer.train(files);
+		} catch (FileNotFoundException e) {
+			MessageDialog.openError(parent, title, "Failed to open data file");
+			Log.error(this, "Failed to find data file", e);
+			return;
+		} catch (IOException e) {
+			MessageDialog.openError(parent, title, "Failed to read data file");
+			Log.error(this, "Failed to read data file", e);
+			return;
 		} catch (WordsDataSourceException e) {
 			MessageDialog.openError(parent, title, "Failed to teach/update classifier model");
 			Log.error(this, "Classifier training error", e);
 			return;
 		}
 
-		File curFile = new File(currentClassify);
-		if (curFile.exists()) {
-			File genFile = new File(generatedClassify);
-			if (genFile.exists()) genFile.delete();
-			curFile.renameTo(genFile);
-		}
-		curFile = null;
 		// and then save the resulting model
-		pds.saveModel(currentClassify);
+		try {
+			ModelTrainer.save(pds, currentClassify, generatedClassify).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			MessageDialog.openError(parent, title, "Failed to save classifier model");
+			Log.error(this, "Classifier model save error", e.getCause());
+			return;
+		}
 
 		// Analyze the model
 		AnalyzeModel am = new AnalyzeModel();
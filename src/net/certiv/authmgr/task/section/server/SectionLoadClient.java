@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.certiv.authmgr.task.section.batch.Options;
+
+/**
+ * Load test client of the {@link SectionServer}. Posts batches of lines, drawn in turn
+ * from a text file, from a number of concurrent threads and reports the throughput and
+ * the distribution of request latencies.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * SectionLoadClient -file &lt;lines&gt; [-url &lt;endpoint&gt;] [-threads &lt;n&gt;] [-requests &lt;n&gt;]
+ *                   [-batch &lt;lines&gt;] [-warmup &lt;n&gt;]
+ * </pre>
+ *
+ * @author Gbr
+ */
+public class SectionLoadClient {
+
+	private final URL url;
+	private final List<String> lines;
+	private final int threads;
+	private final int batch;
+
+	public SectionLoadClient(URL url, List<String> lines, int threads, int batch) {
+		this.url = url;
+		this.lines = lines;
+		this.threads = Math.max(1, threads);
+		this.batch = Math.max(1, Math.min(batch, lines.size()));
+	}
+
+	public static void main(String[] args) {
+		Options opts = new Options(args);
+		String file = opts.get("file", null);
+		if (file == null) {
+			System.err.println("Usage: SectionLoadClient -file <lines> [-url <endpoint>] [-threads <n>]"
+					+ " [-requests <n>] [-batch <lines>] [-warmup <n>]");
+			System.exit(2);
+		}
+		try {
+			List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+			if (lines.isEmpty()) throw new IOException("No lines in " + file);
+			URL url = new URL(opts.get("url", "http://127.0.0.1:" + SectionServer.DEFAULT_PORT + "/classify"));
+			SectionLoadClient client = new SectionLoadClient(url, lines, opts.getInt("threads", 4), opts.getInt(
+					"batch", 100));
+			int warmup = opts.getInt("warmup", 0);
+			if (warmup > 0) client.run(warmup);
+			System.out.println(client.run(opts.getInt("requests", 1000)));
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Posts the given number of requests and returns a report of the run.
+	 */
+	public String run(final int requests) throws Exception {
+		final AtomicInteger next = new AtomicInteger();
+		final long[] latencies = new long[requests];
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		long start = System.nanoTime();
+		try {
+			for (int t = 0; t < threads; t++) {
+				results.add(exec.submit(new Callable<Integer>() {
+
+					public Integer call() throws Exception {
+						int failed = 0;
+						for (int req = next.getAndIncrement(); req < requests; req = next.getAndIncrement()) {
+							long begin = System.nanoTime();
+							if (!post(body(req))) failed++;
+							latencies[req] = System.nanoTime() - begin;
+						}
+						return failed;
+					}
+				}));
+			}
+			int failed = 0;
+			for (Future<Integer> result : results) {
+				failed += result.get();
+			}
+			long elapsed = Math.max(1, System.nanoTime() - start);
+
+			Arrays.sort(latencies);
+			double secs = elapsed / 1e9;
+			return String.format("requests=%d failed=%d threads=%d batch=%d elapsed=%.2fs%n"
+					+ "throughput: %.1f requests/s, %.1f lines/s%n"
+					+ "latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f", requests, failed, threads, batch, secs,
+					requests / secs, (double) requests * batch / secs, percentile(latencies, 0.50), percentile(
+							latencies, 0.90), percentile(latencies, 0.99), percentile(latencies, 1.0));
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	/* The lines of the given request, taken in turn from the file. */
+	private byte[] body(int req) {
+		StringBuilder sb = new StringBuilder();
+		int from = (int) ((long) req * batch % lines.size());
+		for (int idx = 0; idx < batch; idx++) {
+			sb.append(lines.get((from + idx) % lines.size())).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private boolean post(byte[] body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setFixedLengthStreamingMode(body.length);
+		conn.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+		OutputStream out = conn.getOutputStream();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+		int code = conn.getResponseCode();
+		InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+		if (in != null) {
+			try {
+				drain(in);
+			} finally {
+				in.close();
+			}
+		}
+		return code == 200;
+	}
+
+	/* Reads the response through, so that the connection can be reused. */
+	private void drain(InputStream in) throws IOException {
+		byte[] chunk = new byte[8192];
+		while (in.read(chunk) >= 0) {}
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		int idx = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, idx))] / 1e6;
+	}
+}
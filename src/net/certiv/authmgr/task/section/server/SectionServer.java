@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2003-2015 G Rosenberg.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *		G Rosenberg - initial API and implementation
+ *******************************************************************************/
+package net.certiv.authmgr.task.section.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.certiv.authmgr.app.util.Log;
+import net.certiv.authmgr.task.section.batch.Options;
+import net.certiv.authmgr.task.section.core.ClassifySections;
+import net.certiv.authmgr.task.section.core.SectionSettings;
+import net.certiv.authmgr.task.section.core.classifier.BatchResult;
+import net.sf.classifier4J.bayesian.WordsDataSourceException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A standalone section classification server, listening on the loopback interface only.
+ * Requests and responses are UTF-8 text, one record per line; no Java serialized data is
+ * accepted from the network.
+ * <UL>
+ * <LI><code>POST /classify</code> - classifier ready messages, one per line, each the
+ * filtered content and windowed line structure of a line.</LI>
+ * <LI><code>POST /pages</code> - page structures: one line per document line, holding
+ * its line structure specification and content separated by a tab. A line holding a
+ * single form feed separates pages. The structures are windowed per page.</LI>
+ * <LI><code>GET /status</code> - request and line counts.</LI>
+ * </UL>
+ * Each classified line is answered by a line holding its section label, or
+ * <code>-</code> if none, and its margin over the runner-up section, separated by a tab.
+ * Page responses separate pages as the request did.
+ * <p>
+ * Requests are served by a fixed number of threads; the lines of each request are
+ * classified across a fork/join pool of configurable parallelism.
+ * <p>
+ * Usage:
+ * 
+ * <pre>
+ * SectionServer -model &lt;file&gt; -stopwords &lt;file&gt; [-window &lt;n&gt;] [-port &lt;n&gt;]
+ *               [-threads &lt;n&gt;] [-parallelism &lt;n&gt;] [-maxBytes &lt;n&gt;]
+ * </pre>
+ *
+ * @author Gbr
+ */
+public class SectionServer {
+
+	public static final int DEFAULT_PORT = 8765;
+	public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+	public static final String PAGE_BREAK = "\f";
+
+	private final ClassifySections cs;
+	private final int port;
+	private final int threads;
+	private final int maxBytes;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param cs the section classifier; its pool sets the parallelism of each request
+	 * @param port the loopback port to listen on; 0 for any free port
+	 * @param threads the number of requests served concurrently
+	 * @param maxBytes the largest request body accepted
+	 */
+	public SectionServer(ClassifySections cs, int port, int threads, int maxBytes) {
+		this.cs = cs;
+		this.port = port;
+		this.threads = Math.max(1, threads);
+		this.maxBytes = Math.max(1, maxBytes);
+	}
+
+	public static void main(String[] args) {
+		Options opts = new Options(args);
+		String model = opts.get("model", null);
+		String stopWords = opts.get("stopwords", null);
+		if (model == null || stopWords == null) {
+			System.err.println("Usage: SectionServer -model <file> -stopwords <file> [-window <n>] [-port <n>]"
+					+ " [-threads <n>] [-parallelism <n>] [-maxBytes <n>]");
+			System.exit(2);
+		}
+		int cpus = Runtime.getRuntime().availableProcessors();
+		ClassifySections cs = new ClassifySections(model, stopWords, opts.getInt("window", SectionSettings.getWindow()));
+		cs.setPool(new ForkJoinPool(Math.max(1, opts.getInt("parallelism", cpus))));
+
+		final SectionServer server = new SectionServer(cs, opts.getInt("port", DEFAULT_PORT), opts.getInt(
+				"threads", cpus), opts.getInt("maxBytes", DEFAULT_MAX_BYTES));
+		try {
+			server.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("Section server shutdown") {
+
+			@Override
+			public void run() {
+				server.stop();
+			}
+		});
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private int n;
+
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r, "Section server " + (++n));
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/classify", new Handler() {
+
+			@Override
+			String respond(String body) throws WordsDataSourceException {
+				return classifyMessages(body);
+			}
+		});
+		server.createContext("/pages", new Handler() {
+
+			@Override
+			String respond(String body) throws WordsDataSourceException {
+				return classifyPages(body);
+			}
+		});
+		server.createContext("/status", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "requests\t" + requests.get() + "\nlines\t" + lines.get() + "\nerrors\t"
+						+ errors.get() + "\n");
+			}
+		});
+		server.start();
+		Log.info(this, "Section server listening on " + server.getAddress() + " with " + threads + " threads");
+	}
+
+	public void stop() {
+		if (server == null) return;
+		server.stop(1);
+		executor.shutdownNow();
+		server = null;
+		Log.info(this, "Section server stopped: " + requests.get() + " requests, " + lines.get() + " lines");
+	}
+
+	/**
+	 * Returns the address listened on, once started.
+	 */
+	public InetSocketAddress getAddress() {
+		return server != null ? server.getAddress() : null;
+	}
+
+	String classifyMessages(String body) throws WordsDataSourceException {
+		List<String> messages = readLines(body);
+		StringBuilder sb = new StringBuilder();
+		append(sb, cs.classifyMessages(messages));
+		lines.addAndGet(messages.size());
+		return sb.toString();
+	}
+
+	String classifyPages(String body) throws WordsDataSourceException {
+		StringBuilder sb = new StringBuilder();
+		List<String> contents = new ArrayList<String>();
+		List<String> structures = new ArrayList<String>();
+		boolean first = true;
+		for (String line : readLines(body)) {
+			if (line.equals(PAGE_BREAK)) {
+				if (!first) sb.append(PAGE_BREAK).append('\n');
+				append(sb, cs.classifyPage(contents, structures));
+				lines.addAndGet(contents.size());
+				contents.clear();
+				structures.clear();
+				first = false;
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			structures.add(tab < 0 ? line : line.substring(0, tab));
+			contents.add(tab < 0 ? "" : line.substring(tab + 1));
+		}
+		if (!contents.isEmpty() || first) {
+			if (!first) sb.append(PAGE_BREAK).append('\n');
+			append(sb, cs.classifyPage(contents, structures));
+			lines.addAndGet(contents.size());
+		}
+		return sb.toString();
+	}
+
+	private void append(StringBuilder sb, BatchResult result) {
+		for (int idx = 0; idx < result.size(); idx++) {
+			String label = result.getPartition(idx);
+			sb.append(label != null ? label : "-").append('\t').append(result.getMargin(idx)).append('\n');
+		}
+	}
+
+	private List<String> readLines(String body) {
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new StringReader(body));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				result.add(line);
+			}
+		} catch (IOException e) {
+			// not thrown by a string reader
+		}
+		return result;
+	}
+
+	private void send(HttpExchange exchange, int code, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length > 0 ? bytes.length : -1);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/* Reads the request body, limited in size, and answers with the response text. */
+	private abstract class Handler implements HttpHandler {
+
+		abstract String respond(String body) throws Exception;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					send(exchange, 405, "POST required\n");
+					return;
+				}
+				String body = read(exchange.getRequestBody());
+				if (body == null) {
+					send(exchange, 413, "Request exceeds " + maxBytes + " bytes\n");
+					return;
+				}
+				requests.incrementAndGet();
+				send(exchange, 200, respond(body));
+			} catch (Exception e) {
+				errors.incrementAndGet();
+				Log.error(SectionServer.this, "Request failed " + exchange.getRequestURI(), e);
+				send(exchange, 500, e.toString() + "\n");
+			} finally {
+				exchange.close();
+			}
+		}
+
+		/* Returns null if the body exceeds the limit. */
+		private String read(InputStream in) throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			try {
+				for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+					if (buf.size() + n > maxBytes) return null;
+					buf.write(chunk, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}